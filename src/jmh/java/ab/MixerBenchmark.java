@@ -0,0 +1,122 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One block of the software synthesizer rendered to the null sink, no audio hardware needed.
+ * The voices that reach the end of a one-shot sample are triggered again before the next block.
+ * The vector sinc kernel needs -jvmArgsAppend --add-modules=jdk.incubator.vector on java 17 and later.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixerBenchmark {
+
+  public static final int SAMPLE_SIZE = 0x10000;
+  public static final int LOOP_SIZE = 0x40;
+  public static final int BLOCK = 0x400;
+
+  @Param({"4", "16", "32", "64"})
+  public int voices;
+
+  @Param({"1", "2"})
+  public int channels;
+
+  @Param({"true", "false"})
+  public boolean loop;
+
+  @Param({"NEAREST", "LINEAR", "CUBIC", "SINC"})
+  public TnsSound.Interpolation interpolation;
+
+  /**
+   * Mixing threads, 0 mixes on the calling thread. Parallelism 1 measures the fork join overhead alone:
+   * the hand off to the pool and the sum of the partial buffer, with no second core to pay for it.
+   */
+  @Param({"0", "1", "2", "4"})
+  public int parallelism;
+
+  private TnsSound sound;
+  private ForkJoinPool pool;
+
+  /**
+   * Sine wave with a period of the loop size, the instrument 1 like the first sample of a module.
+   */
+  public static TnsSound.Font newFont(boolean loop) {
+    byte[] pcm = new byte[SAMPLE_SIZE];
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      pcm[i] = (byte) Math.round(Math.sin(i * Math.PI * 2 / LOOP_SIZE) * 100);
+    }
+    TnsSound.Font font = new TnsSound.Font(2, ByteBuffer.wrap(pcm), 8363, "benchmark");
+    font.getInstruments()[1].setSampe(0, SAMPLE_SIZE);
+    if (loop) font.getInstruments()[1].setLoop(SAMPLE_SIZE - LOOP_SIZE, LOOP_SIZE);
+    return font;
+  }
+
+  @Setup
+  public void setup() {
+    sound = new TnsSound(new AudioFormat(44_100, 16, channels, true, false), AudioSink.nullSink());
+    sound.loadAllInstruments(newFont(loop));
+    sound.setMaxVoices(voices);
+    sound.setInterpolation(interpolation);
+    pool = parallelism == 0 ? null : new ForkJoinPool(parallelism);
+    sound.setParallel(pool, 0);
+    trigger();
+    sound.pull(BLOCK);
+  }
+
+  private void trigger() {
+    for (int voice = sound.getActiveVoices(); voice < voices; voice++) {
+      int channel = voice % TnsSound.MIDI_CHANNELS;
+      sound.pan(channel, channel * 8);
+      sound.noteOffOn(channel, 1, 36 + voice % 48, true);
+    }
+  }
+
+  @Benchmark
+  public void pull() {
+    if (sound.getActiveVoices() < voices) trigger();
+    sound.pull(BLOCK);
+  }
+
+  @TearDown
+  public void tearDown() {
+    sound.close();
+    if (pool != null) pool.shutdown();
+  }
+
+}
@@ -21,14 +21,15 @@ import javax.sound.midi.MetaMessage;
 import javax.sound.midi.MidiMessage;
 import javax.sound.midi.ShortMessage;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UncheckedIOException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.function.Consumer;
 
 public class AmigaMod {
@@ -39,14 +40,24 @@ public class AmigaMod {
   // See how these constants were made
   public static final int C4_DIVISOR = (int) Math.round(NTSC_COLORBURST / C9_FREQUENCY); // 428
   public static final int C4_RATE = (int) Math.round(NTSC_COLORBURST / C4_DIVISOR); // 8363
+  public static final int[] AMIGA_PAN = {0x00, 0x7F, 0x7F, 0x00}; // LRRL
+
+  public static final int SIGNATURE_POS = 0x438;
+  public static final int MK = 0x4D2E4B2E; // M.K.
+  public static final int FLT8 = 0x464C5438;
+  public static final int MAX_CHANNELS = 0x20;
+  static final MetaMessage ROW_END = newRowEnd(); // the row end without row text, one empty text message
 
   public final ByteBuffer bytes;
   public final int patternSize;
+  public final int channels;
+  public final boolean flt8; // every 8 channel pattern is stored as two 4 channel patterns
   public int samplesSize = 0x20;
   public final int[] samples = new int[samplesSize];
   public final int orderPos;
   public final int patternPos;
   public final int[] midiInstrumentMap = new int[samplesSize];
+  private Patterns patterns;
 
   private static byte[] readAllBytes(InputStream stream) {
     try (stream) {
@@ -61,25 +72,60 @@ public class AmigaMod {
   }
 
   public AmigaMod(InputStream stream, int[] midiInstrumentMap) {
-    bytes = ByteBuffer.wrap(readAllBytes(stream));
-    if (bytes.getInt(0x438) != 0x4D2E4B2E) {
-      samplesSize = 0x10;
-      throw new IllegalStateException("mod file error");
+    this(ByteBuffer.wrap(readAllBytes(stream)), midiInstrumentMap);
+  }
+
+  /**
+   * Maps the file read only, nothing is copied to the heap. The header and the order table are parsed now,
+   * the pages of the patterns and the samples are read by the os when they are first used.
+   * The file may be closed after, the mapping stays valid.
+   */
+  public AmigaMod(Path path) {
+    this(path, null);
+  }
+
+  public AmigaMod(Path path, int[] midiInstrumentMap) {
+    this(map(path), midiInstrumentMap);
+  }
+
+  private static ByteBuffer map(Path path) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @param bytes the whole module, big endian, heap or direct
+   */
+  public AmigaMod(ByteBuffer bytes, int[] midiInstrumentMap) {
+    this.bytes = bytes;
+    int signature = bytes.limit() >= SIGNATURE_POS + 4 ? bytes.getInt(SIGNATURE_POS) : 0;
+    int channels = getChannels(signature);
+    if (channels == 0) {
+      samplesSize = 0x10; // soundtracker, 15 samples and no signature
+      channels = 4;
     }
+    this.channels = channels;
+    flt8 = signature == FLT8;
     orderPos = samplesSize > 0x10 ? 0x3B6 : 0x1D6;
     patternPos = samplesSize > 0x10 ? 0x43C : 0x258;
-    bytes.position(orderPos + 2);
+    if (bytes.limit() < patternPos) throw new IllegalStateException("mod file error");
     int maxPattern = 0;
     int maxOrder = 0;
     for (int i = 0; i < 0x80; i++) {
-      byte b = bytes.get();
+      byte b = bytes.get(orderPos + 2 + i);
       maxPattern = Math.max(maxPattern, b);
       maxOrder = b == 0 ? maxOrder : i;
     }
-    patternSize = maxPattern + 1;
+    patternSize = flt8 ? (maxPattern >> 1) + 1 : maxPattern + 1;
+    int patternBytes = patternSize * 0x100 * channels;
+    if (samplesSize == 0x10 && (getOrderSize() <= 0 || maxPattern >= 0x40
+        || bytes.limit() < patternPos + patternBytes)) throw new IllegalStateException("mod file error");
     for (int i = 0, sampleStart = 0; i < samplesSize; i++) {
       samples[i] = sampleStart;
-      sampleStart += i == 0 ? patternPos + patternSize * 0x400 : getSampleSize(i);
+      sampleStart += i == 0 ? patternPos + patternBytes : getSampleSize(i);
     }
     for (int i = 0; i < this.midiInstrumentMap.length; i++) {
       this.midiInstrumentMap[i] = i + 1;
@@ -90,18 +136,67 @@ public class AmigaMod {
     }
   }
 
+  /**
+   * @return the number of channels for the signature at 0x438, 0 if it is not a signature
+   */
+  public static int getChannels(int signature) {
+    switch (signature) {
+      case MK: case 0x4D214B21: case 0x464C5434: return 4; // M!K! FLT4
+      case FLT8: case 0x43443831: case 0x4F4B5441: case 0x4F435441: return 8; // CD81 OKTA OCTA
+    }
+    int c0 = signature >> 24 & 0xFF;
+    int c1 = signature >> 16 & 0xFF;
+    int channels = 0;
+    if (Character.isDigit(c0) && (signature & 0xFFFFFF) == 0x43484E) channels = c0 - '0'; // xCHN
+    if (Character.isDigit(c0) && Character.isDigit(c1) && ((signature & 0xFFFF) == 0x4348
+        || (signature & 0xFFFF) == 0x434E)) channels = (c0 - '0') * 10 + c1 - '0'; // xxCH xxCN
+    if ((signature & 0xFFFFFF00) == 0x54445A00 && Character.isDigit(signature & 0xFF)) {
+      channels = (signature & 0xFF) - '0'; // TDZx
+    }
+    return channels > 0 && channels <= MAX_CHANNELS ? channels : 0;
+  }
+
+  /**
+   * @return the pattern played at the order position
+   */
+  public int getPattern(int order) {
+    int pattern = bytes.get(orderPos + 2 + order);
+    return flt8 ? pattern >> 1 : pattern;
+  }
+
+  /**
+   * @return the position of the 4 byte note in the module
+   */
+  public int getCellPosition(int pattern, int row, int channel) {
+    if (flt8) return patternPos + (((pattern << 1 | channel >> 2) << 6 | row) << 4) + ((channel & 3) << 2);
+    return patternPos + (((pattern << 6 | row) * channels + channel) << 2);
+  }
+
+  /**
+   * Tracker channels go to midi channels 0-15 except the drums channel 9, the channels after 15 share them.
+   */
+  public static int getMidiChannel(int channel) {
+    int midiChannel = channel % 15;
+    return midiChannel < 9 ? midiChannel : midiChannel + 1;
+  }
+
   public int getSampleSize(int sample) {
     return sample == 0 ? samples[1] : bytes.getShort(sample * 0x1E + 0x0C) << 1 & 0x1FFFF;
   }
 
+  private String getString(int offset, int length) {
+    byte[] b = new byte[length];
+    bytes.duplicate().position(offset).get(b);
+    return new String(b, StandardCharsets.ISO_8859_1);
+  }
+
   public String getSongName() {
-    return new String(Arrays.copyOfRange(bytes.array(), 0, 0x14), StandardCharsets.ISO_8859_1);
+    return getString(0, 0x14);
   }
 
   public String getSampleName(int sample) {
     if (sample == 0) return getSongName();
-    return new String(Arrays.copyOfRange(bytes.array(), sample * 0x1E - 0x0A, sample * 0x1E + 0x0C),
-        StandardCharsets.ISO_8859_1);
+    return getString(sample * 0x1E - 0x0A, 0x16);
   }
 
   public int getSampleStart(int sample) {
@@ -118,11 +213,17 @@ public class AmigaMod {
   }
 
   /**
-   * Definition of Loop.
+   * Definition of Loop. One word loop length is a one-shot sample, the loop start can be zero.
    */
   public boolean isLoop(int sample) {
-    // FIXME: 2022-08-18 this is wrong
-    return sample == 0 ? true : getLoopStart(sample) != 0;
+    return sample == 0 ? true : getLoopLength(sample) > 2;
+  }
+
+  /**
+   * @return finetune in 1/8 semitones, -8 to 7
+   */
+  public int getFineTune(int sample) {
+    return sample == 0 ? 0 : bytes.get(sample * 0x1E + 0x0E) << 28 >> 28;
   }
 
   public int getLoopStart(int sample) {
@@ -133,26 +234,46 @@ public class AmigaMod {
     return sample == 0 ? samples[1] : bytes.getShort(sample * 0x1E + 0x12) << 1 & 0x1FFFF;
   }
 
-  public byte[] toMidiBytes() {
-    ByteArrayOutputStream stream = new ByteArrayOutputStream();
-    stream.write(0x00);
-    getSequencer(midiMessage -> {
-      try {
-        stream.write(midiMessage.getMessage());
-      } catch (IOException e) {
-        throw new UncheckedIOException(e);
+  /**
+   * The patterns decoded to primitive arrays, compiled on the first call.
+   */
+  public Patterns getPatterns() {
+    if (patterns == null) {
+      Patterns patterns = new Patterns(patternSize, channels);
+      for (int pattern = 0, cell = 0; pattern < patternSize; pattern++) {
+        for (int row = 0; row < 0x40; row++) {
+          for (int channel = 0; channel < channels; channel++, cell++) {
+            patterns.put(cell, bytes.getInt(getCellPosition(pattern, row, channel)));
+          }
+        }
       }
-      stream.write(midiMessage instanceof MetaMessage && ((MetaMessage) midiMessage).getType() == 1 ? 1 : 0);
-    }).start();
+      this.patterns = patterns;
+    }
+    return patterns;
+  }
+
+  public byte[] toMidiBytes() {
+    return toMidiBytes(true);
+  }
 
-    stream.write(0xFF);
-    stream.write(0x2F);
-    stream.write(0x00);
+  /**
+   * @param rowText false for no row text events, nothing is formatted
+   */
+  public byte[] toMidiBytes(boolean rowText) {
+    int rows = getOrderSize() * 0x40;
+    SmfWriter writer = new SmfWriter(SmfWriter.HEADER_SIZE + rows * (channels * 4 + (rowText ? 0x10 * channels : 1)));
+    getSequencer(midiMessage -> {
+      if (midiMessage != ROW_END) writer.accept(midiMessage);
+    }).setRowText(rowText).setRowListener(sequencer -> writer.tick(1)).start();
+    return writer.toByteArray(4);
+  }
 
-    ByteBuffer result = ByteBuffer.wrap(new byte[stream.size() + 0x16]);
-    result.putInt(0x4D546864).putInt(6).putShort((short) 1).putShort((short) 1).putShort((short) 0x04);
-    result.putInt(0x4D54726B).putInt(stream.size()).put(stream.toByteArray());
-    return result.array();
+  private static MetaMessage newRowEnd() {
+    try {
+      return new MetaMessage(1, new byte[0], 0);
+    } catch (InvalidMidiDataException e) {
+      throw new IllegalStateException(e);
+    }
   }
 
   public InputStream toMidi() {
@@ -160,18 +281,13 @@ public class AmigaMod {
   }
 
   public TnsSound.Font toSoundFont() {
-    byte[] pcm8 = this.bytes.array();
-    byte[] pcm16 = new byte[pcm8.length * 2];
-    for (int i = 0, i1 = 1; i < pcm8.length; i++, i1 += 2) {
-      pcm16[i1] = pcm8[i];
-    }
-
-    TnsSound.Font soundFont = new TnsSound.Font(this.samplesSize, pcm16, 8363, this.getSongName());
+    TnsSound.Font soundFont = new TnsSound.Font(this.samplesSize, this.bytes, 8363, this.getSongName());
     TnsSound.Instrument[] ins = soundFont.getInstruments();
     for (int i = 0; i < ins.length; i++) {
       ins[i].setName(this.getSampleName(i));
       ins[i].setSampe(this.getSampleStart(i), this.getSampleSize(i));
       if (this.isLoop(i)) ins[i].setLoop(this.getLoopStart(i), this.getLoopLength(i));
+      if (this.getFineTune(i) != 0) ins[i].setFineTune(this.getFineTune(i));
     }
     return soundFont;
   }
@@ -184,15 +300,51 @@ public class AmigaMod {
     return new Sequencer(consumer);
   }
 
+  /**
+   * Plays the module to the consumer. Every row ends with a text meta message, the row text or an empty one
+   * if the row text is off.
+   */
   public class Sequencer {
     private final Consumer<MidiMessage> consumer;
 
     private int row;
+    private boolean rowText = true;
+    private Consumer<Sequencer> rowListener;
 
     public Sequencer(Consumer<MidiMessage> consumer) {
       this.consumer = consumer;
     }
 
+    /**
+     * @param rowText false to end the rows with one shared empty text message, no strings are made while playing
+     */
+    public Sequencer setRowText(boolean rowText) {
+      this.rowText = rowText;
+      return this;
+    }
+
+    /**
+     * @param rowListener called at the end of every row, it may call formatRow() if it needs the text
+     */
+    public Sequencer setRowListener(Consumer<Sequencer> rowListener) {
+      this.rowListener = rowListener;
+      return this;
+    }
+
+    /**
+     * @return the display text of the current row
+     */
+    public String formatRow() {
+      Patterns patterns = getPatterns();
+      StringBuilder s = new StringBuilder(String.format("\r  %02d/%02d", this.getOrder(), this.getRow()));
+      int cell = patterns.index(getPattern(), getRow());
+      for (int c = 0; c < patterns.channels; c++, cell++) {
+        s.append(" | ").append(Note.toString(
+            patterns.getKey(cell), patterns.getSample(cell), patterns.effects[cell], patterns.getParam(cell)));
+      }
+      return s.toString();
+    }
+
     public void inc() {
       this.row++;
     }
@@ -202,7 +354,7 @@ public class AmigaMod {
     }
 
     public int getPattern() {
-      return bytes.get(orderPos + 2 + getOrder());
+      return AmigaMod.this.getPattern(getOrder());
     }
 
     public int getRow() {
@@ -214,11 +366,9 @@ public class AmigaMod {
     }
 
     public Note[] getNotes() {
-      int position = ((getPattern() << 6) + getRow() << 4) + patternPos;
-      bytes.position(position);
-      Note[] result = new Note[4];
-      for (int c = 0; c < 4; c++) {
-        result[c] = new Note(bytes.getInt());
+      Note[] result = new Note[channels];
+      for (int c = 0; c < channels; c++) {
+        result[c] = new Note(bytes.getInt(getCellPosition(getPattern(), getRow(), c)));
       }
       return result;
     }
@@ -264,27 +414,40 @@ public class AmigaMod {
       sendMeta(1, s.getBytes());
     }
 
+    private void endRow() {
+      if (rowText) {
+        sendText(formatRow());
+      } else {
+        consumer.accept(ROW_END);
+      }
+      if (rowListener != null) rowListener.accept(this);
+    }
+
     public void start() {
       int bpmSpeed = 6;
       int bpmTempo = 125;
       setSpeedTempo(bpmSpeed, bpmTempo);
-      int[] chSample = new int[0x20];
-      int[] chNote = new int[0x20];
+      int[] midiChannel = new int[channels];
+      for (int c = 0; c < channels; c++) {
+        midiChannel[c] = getMidiChannel(c);
+        if (c < 15) sendMessage(ShortMessage.CONTROL_CHANGE, midiChannel[c], TnsSound.CC_PAN, AMIGA_PAN[c & 3], -1);
+      }
+      Patterns patterns = getPatterns();
+      int[] chSample = new int[channels];
+      int[] chNote = new int[channels];
       for (; this.getLoop() == 0; this.inc()) {
-        StringBuffer s = new StringBuffer(String.format("\r  %02d/%02d", this.getOrder(), this.getRow()));
-        Note[] notes = this.getNotes();
-        for (int c = 0; c < 4; c++) {
-          Note note = notes[c];
-          s.append(" | ").append(note);
-          if (note.isNoteOn()) {
-            this.noteOffOn(c, chSample[c], chNote[c], false);
-            chSample[c] = note.getSample();
-            chNote[c] = note.getMidiNote();
-            this.noteOffOn(c, chSample[c], chNote[c], true);
+        int cell = patterns.index(getPattern(), getRow());
+        for (int c = 0; c < channels; c++, cell++) {
+          int key = patterns.getKey(cell);
+          if (key != 0) {
+            this.noteOffOn(midiChannel[c], chSample[c], chNote[c], false);
+            chSample[c] = patterns.getSample(cell);
+            chNote[c] = key;
+            this.noteOffOn(midiChannel[c], chSample[c], chNote[c], true);
           }
-          switch (note.getFxCommand()) {
+          switch (patterns.effects[cell]) {
             case 0xF:
-              int d = note.getFxData();
+              int d = patterns.getParam(cell);
               if (d == 0) break;
               if (d < 0x20) {
                 bpmSpeed = d;
@@ -295,10 +458,10 @@ public class AmigaMod {
               break;
           }
         }
-        sendText(s.toString());
-        for (int c = 0; c < 4; c++) {
-          Note note = notes[c];
-          switch (note.getFxCommand()) {
+        endRow();
+        cell = patterns.index(getPattern(), getRow());
+        for (int c = 0; c < channels; c++, cell++) {
+          switch (patterns.effects[cell]) {
             case 0xD:
               for (int i = this.getOrder(); i == this.getOrder(); this.inc()) {}
               break;
@@ -326,9 +489,19 @@ public class AmigaMod {
         214, 202, 190, 180, 170, 160, 151, 143, 135, 127, 120, 113,
     };
 
+    /**
+     * Period to midi key for all the 12 bit periods, the note is a table lookup.
+     */
+    private static final int[] PERIOD_TO_MIDI = new int[0x1000];
+    static {
+      for (int noteCode = 1; noteCode < PERIOD_TO_MIDI.length; noteCode++) {
+        double log2 = Math.log((double) C4_DIVISOR / noteCode) / Math.log(2);
+        PERIOD_TO_MIDI[noteCode] = (int) Math.round(C4_MIDI + log2 * 12);
+      }
+    }
+
     public static int noteCodeToMidi(int noteCode) {
-      double log2 = Math.log((double) C4_DIVISOR / noteCode) / Math.log(2);
-      return (int) Math.round(C4_MIDI + log2 * 12);
+      return PERIOD_TO_MIDI[noteCode & 0x0FFF];
     }
 
     public static int noteMidiToCode(int noteMidi) {
@@ -371,11 +544,66 @@ public class AmigaMod {
 
     @Override
     public String toString() {
+      return toString(isNoteOn() ? midiNote : 0, getSample(), getFxCommand(), getFxData());
+    }
+
+    /**
+     * @param midiNote the midi key, 0 if no note
+     */
+    public static String toString(int midiNote, int sample, int fxCommand, int fxData) {
       return String.format("%s %s %c%02X",
-          !isNoteOn() ? "..." : String.format("%c%c%d",
+          midiNote == 0 ? "..." : String.format("%c%c%d",
               CDEFGAB0.charAt(midiNote % 12), CDEFGAB1.charAt(midiNote % 12), (midiNote / 12 - 1)),
-          getSample() == 0 ? ".." : String.format("%02d", getSample()),
-          FX.charAt(getFxCommand()), getFxData());
+          sample == 0 ? ".." : String.format("%02d", sample),
+          FX.charAt(fxCommand), fxData);
+    }
+  }
+
+  /**
+   * All the pattern cells decoded once, one array per field. No objects per note, nothing is decoded while playing.
+   * The cell index is (pattern * 0x40 + row) * channels + channel.
+   */
+  public static class Patterns {
+    public final int channels;
+    public final byte[] keys; // midi key, 0 if no note
+    public final byte[] samples;
+    public final byte[] effects;
+    public final byte[] params;
+
+    public Patterns(int patterns, int channels) {
+      this.channels = channels;
+      int cells = patterns * 0x40 * channels;
+      keys = new byte[cells];
+      samples = new byte[cells];
+      effects = new byte[cells];
+      params = new byte[cells];
+    }
+
+    /**
+     * Decodes the four bytes of the protracker note.
+     */
+    void put(int cell, int data) {
+      int noteCode = data >> 16 & 0x0FFF;
+      keys[cell] = (byte) (noteCode == 0 ? 0 : Note.noteCodeToMidi(noteCode));
+      samples[cell] = (byte) (data >> 24 & 0xF0 | data >> 12 & 0x0F);
+      effects[cell] = (byte) (data >> 8 & 0x0F);
+      params[cell] = (byte) data;
+    }
+
+    public int index(int pattern, int row) {
+      return (pattern << 6 | row) * channels;
+    }
+
+    public int getKey(int cell) {
+      return keys[cell] & 0xFF;
+    }
+
+    public int getSample(int cell) {
+      return samples[cell] & 0xFF;
+    }
+
+    public int getParam(int cell) {
+      return params[cell] & 0xFF;
     }
   }
 
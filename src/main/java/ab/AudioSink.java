@@ -0,0 +1,211 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where the pcm bytes go. The writes come from the render thread only.
+ */
+public interface AudioSink extends AutoCloseable {
+
+  /**
+   * Writes all the bytes, blocks if the sink is full.
+   */
+  void write(byte[] bytes, int offset, int length);
+
+  /**
+   * @return the sink own buffer of at least the length the pcm is converted into, null if the sink takes arrays
+   */
+  default ByteBuffer getBuffer(int length) {
+    return null;
+  }
+
+  /**
+   * Writes the first length bytes of the buffer returned by getBuffer.
+   */
+  default void writeBuffer(int length) {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * @return bytes that can be written without blocking
+   */
+  default int available() {
+    return Integer.MAX_VALUE;
+  }
+
+  /**
+   * @return the size of the buffer that is played out in real time, 0 if the sink has no such buffer
+   */
+  default int getBufferSize() {
+    return 0;
+  }
+
+  @Override
+  default void close() {
+  }
+
+  static AudioSink of(SourceDataLine line) {
+    return new Line(line);
+  }
+
+  static AudioSink of(OutputStream output) {
+    return new Stream(output);
+  }
+
+  static AudioSink of(WritableByteChannel channel) {
+    return new Channel(channel);
+  }
+
+  /**
+   * Discards everything, never blocks.
+   */
+  static AudioSink nullSink() {
+    return (bytes, offset, length) -> {};
+  }
+
+  /**
+   * The default audio device, opened on the first use.
+   * @param bufferSize the line buffer in bytes, 0 for the default
+   */
+  static AudioSink line(AudioFormat audioFormat, int bufferSize) {
+    return new Line(audioFormat, bufferSize);
+  }
+
+  /**
+   * The started line, the sink stops and closes it.
+   * The lazy line is opened by the first write, available() or getBufferSize() if the size is not known yet.
+   */
+  class Line implements AudioSink {
+    private final AudioFormat audioFormat;
+    private final int bufferSize;
+    SourceDataLine line;
+
+    public Line(SourceDataLine line) {
+      this.audioFormat = line.getFormat();
+      this.bufferSize = line.getBufferSize();
+      this.line = line;
+    }
+
+    public Line(AudioFormat audioFormat, int bufferSize) {
+      this.audioFormat = audioFormat;
+      this.bufferSize = bufferSize;
+    }
+
+    private SourceDataLine getLine() {
+      if (line == null) try {
+        SourceDataLine line = AudioSystem.getSourceDataLine(audioFormat);
+        if (bufferSize > 0) line.open(audioFormat, bufferSize); else line.open(audioFormat);
+        line.start();
+        this.line = line;
+      } catch (LineUnavailableException e) {
+        throw new IllegalStateException(e);
+      }
+      return line;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      getLine().write(bytes, offset, length);
+    }
+
+    @Override
+    public int available() {
+      return getLine().available();
+    }
+
+    @Override
+    public int getBufferSize() {
+      return line == null && bufferSize > 0 ? bufferSize : getLine().getBufferSize();
+    }
+
+    @Override
+    public void close() {
+      if (line == null) return;
+      line.stop();
+      line.close();
+    }
+  }
+
+  /**
+   * The stream is not closed by the sink.
+   */
+  class Stream implements AudioSink {
+    private final OutputStream output;
+
+    public Stream(OutputStream output) {
+      this.output = output;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      try {
+        output.write(bytes, offset, length);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+  }
+
+  /**
+   * File, pipe or socket. The pcm is converted straight into one reusable direct buffer, there is no heap copy
+   * and the channel does not need a temporary buffer. The channel is not closed by the sink.
+   */
+  class Channel implements AudioSink {
+    private final WritableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(0);
+
+    public Channel(WritableByteChannel channel) {
+      this.channel = channel;
+    }
+
+    @Override
+    public ByteBuffer getBuffer(int length) {
+      if (buffer.capacity() < length) buffer = ByteBuffer.allocateDirect(length);
+      return buffer;
+    }
+
+    @Override
+    public void writeBuffer(int length) {
+      buffer.limit(length).position(0);
+      try {
+        while (buffer.hasRemaining()) channel.write(buffer);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        buffer.clear();
+      }
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+      getBuffer(length).clear();
+      buffer.put(bytes, offset, length);
+      writeBuffer(length);
+    }
+  }
+
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Converts every module in the directory tree to midi and sound font files in the same tree under the output
+ * directory. The modules are independent, they are converted on a bounded pool of workers.
+ * A module is skipped if both outputs are newer than it.
+ */
+public class BatchConvert {
+
+  private final Path input;
+  private final Path output;
+  private final int threads;
+  private final AtomicInteger converted = new AtomicInteger();
+  private final AtomicInteger skipped = new AtomicInteger();
+  private final AtomicLong bytes = new AtomicLong();
+  private final Map<Path, String> failures = new TreeMap<>();
+  private long nanos;
+
+  public BatchConvert(Path input, Path output, int threads) {
+    this.input = input;
+    this.output = output;
+    this.threads = threads;
+  }
+
+  public BatchConvert(Path input, Path output) {
+    this(input, output, Runtime.getRuntime().availableProcessors());
+  }
+
+  private static boolean isMod(Path path) {
+    String name = path.getFileName().toString().toLowerCase();
+    return Files.isRegularFile(path) && (name.endsWith(".mod") || name.startsWith("mod."));
+  }
+
+  private static String getBaseName(Path path) {
+    String name = path.getFileName().toString();
+    return name.toLowerCase().endsWith(".mod") ? name.substring(0, name.length() - 4) : name;
+  }
+
+  /**
+   * The file is written to a temporary one first, a failed conversion does not leave a file that looks up to date.
+   */
+  private static void write(Path path, byte[] content) throws IOException {
+    Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+    Files.write(temporary, content);
+    Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void convert(Path mod) {
+    try {
+      Path directory = output.resolve(input.relativize(mod)).getParent();
+      String name = getBaseName(mod);
+      Path mid = directory.resolve(name + ".mid");
+      Path sf2 = directory.resolve(name + ".sf2");
+      if (Files.exists(mid) && Files.exists(sf2)
+          && Files.getLastModifiedTime(mid).compareTo(Files.getLastModifiedTime(mod)) >= 0
+          && Files.getLastModifiedTime(sf2).compareTo(Files.getLastModifiedTime(mod)) >= 0) {
+        skipped.incrementAndGet();
+        return;
+      }
+      AmigaMod amigaMod = new AmigaMod(mod);
+      Files.createDirectories(directory);
+      write(mid, amigaMod.toMidiBytes());
+      write(sf2, amigaMod.toSoundFont().toByteArray());
+      bytes.addAndGet(amigaMod.bytes.limit());
+      converted.incrementAndGet();
+    } catch (Exception e) {
+      synchronized (failures) {
+        failures.put(mod, e.toString());
+      }
+    }
+  }
+
+  /**
+   * Converts the tree, returns when all the modules are done. The caller runs the conversion when the queue is full.
+   */
+  public BatchConvert run() {
+    long start = System.nanoTime();
+    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+    try (Stream<Path> paths = Files.walk(input)) {
+      List<Path> mods = paths.filter(BatchConvert::isMod).collect(Collectors.toList());
+      mods.forEach(mod -> pool.execute(() -> convert(mod)));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      pool.shutdown();
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    nanos = System.nanoTime() - start;
+    return this;
+  }
+
+  public int getConverted() {
+    return converted.get();
+  }
+
+  public int getSkipped() {
+    return skipped.get();
+  }
+
+  /**
+   * @return the failed modules and the errors
+   */
+  public Map<Path, String> getFailures() {
+    return failures;
+  }
+
+  /**
+   * @return the modules converted per second
+   */
+  public double getFilesPerSecond() {
+    return converted.get() / (nanos / 1_000_000_000.0);
+  }
+
+  /**
+   * @return megabytes of the modules converted per second
+   */
+  public double getMegabytesPerSecond() {
+    return bytes.get() / 1_000_000.0 / (nanos / 1_000_000_000.0);
+  }
+
+  public static void main(String[] args) {
+    if (args.length < 2) throw new IllegalStateException("input and output directories required");
+    Path input = Paths.get(args[0]);
+    Path output = Paths.get(args[1]);
+    BatchConvert batch = args.length > 2
+        ? new BatchConvert(input, output, Integer.parseInt(args[2])) : new BatchConvert(input, output);
+    batch.run();
+    batch.getFailures().forEach((path, error) -> System.out.println(path + ": " + error));
+    System.out.println(String.format("%d converted, %d skipped, %d failed, %.1f files/s, %.1f MB/s",
+        batch.getConverted(), batch.getSkipped(), batch.getFailures().size(),
+        batch.getFilesPerSecond(), batch.getMegabytesPerSecond()));
+  }
+
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer single consumer ring buffer of primitive encoded events.
+ * No locks and no allocation, one thread may offer and one other thread may poll.
+ */
+public class EventQueue {
+
+  private final long[] events;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong(); // next to poll, written by consumer
+  private final AtomicLong tail = new AtomicLong(); // next to offer, written by producer
+
+  /**
+   * @param capacity the power of two
+   */
+  public EventQueue(int capacity) {
+    if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+    events = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Producer side.
+   * @return false if the queue is full
+   */
+  public boolean offer(long event) {
+    long t = tail.get();
+    if (t - head.get() == events.length) return false;
+    events[(int) t & mask] = event;
+    tail.lazySet(t + 1);
+    return true;
+  }
+
+  /**
+   * Producer side, waits for the consumer if the queue is full. Events are never dropped.
+   */
+  public void put(long event) {
+    while (!offer(event)) Thread.yield();
+  }
+
+  /**
+   * Consumer side.
+   */
+  public boolean isEmpty() {
+    return head.get() == tail.get();
+  }
+
+  /**
+   * Consumer side, the queue must not be empty.
+   */
+  public long peek() {
+    return events[(int) head.get() & mask];
+  }
+
+  /**
+   * Consumer side, the queue must not be empty.
+   */
+  public long poll() {
+    long h = head.get();
+    long event = events[(int) h & mask];
+    head.lazySet(h + 1);
+    return event;
+  }
+
+  public int size() {
+    return (int) (tail.get() - head.get());
+  }
+
+}
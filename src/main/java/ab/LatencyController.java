@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+/**
+ * Chooses how many frames are kept queued in the output line. An underrun doubles the target depth,
+ * a calm period whose lowest fill level stayed above half of the target shrinks it by one eighth.
+ * The render block is a quarter of the target depth.
+ */
+public class LatencyController {
+
+  public static final int MIN_BLOCK = 0x40;
+  public static final int CALM_SECONDS = 2;
+
+  private final int rate;
+  private final int minFrames;
+  private final int maxFrames;
+  private int target;
+  private long underruns;
+  private int lowWater;
+  private long calm;
+
+  /**
+   * @param minFrames the lowest queue depth, the controller starts here
+   * @param maxFrames the highest queue depth, not more than the line buffer
+   */
+  public LatencyController(int rate, int minFrames, int maxFrames) {
+    if (minFrames <= 0 || minFrames > maxFrames) throw new IllegalArgumentException("min " + minFrames + " max " + maxFrames);
+    this.rate = rate;
+    this.minFrames = minFrames;
+    this.maxFrames = maxFrames;
+    target = minFrames;
+    lowWater = target;
+  }
+
+  /**
+   * Called by the render loop whenever it wakes up.
+   * @param queued frames written to the line and not yet played
+   * @param underruns the underrun counter of the output
+   * @return frames to render now, 0 to wait
+   */
+  public int update(int queued, long underruns) {
+    if (underruns < this.underruns) this.underruns = underruns; // counter reset
+    if (underruns > this.underruns) {
+      this.underruns = underruns;
+      target = Math.min(target * 2, maxFrames);
+      calm = 0;
+      lowWater = target;
+    }
+    lowWater = Math.min(lowWater, queued);
+    int frames = target - queued;
+    if (frames < getBlockFrames()) return 0;
+    calm += frames;
+    if (calm >= (long) rate * CALM_SECONDS) {
+      if (lowWater > target / 2) target = Math.max(target - target / 8, minFrames);
+      calm = 0;
+      lowWater = target;
+    }
+    return frames;
+  }
+
+  /**
+   * @return the controller for the actual line buffer, this one if its highest depth fits
+   */
+  public LatencyController limit(int bufferFrames) {
+    if (maxFrames <= bufferFrames) return this;
+    return new LatencyController(rate, Math.min(minFrames, bufferFrames), bufferFrames);
+  }
+
+  public int getTargetFrames() {
+    return target;
+  }
+
+  public int getBlockFrames() {
+    return Math.min(Math.max(target / 4, MIN_BLOCK), target);
+  }
+
+  /**
+   * @return the effective output latency, the target queue depth in microseconds
+   */
+  public long getLatencyMicros() {
+    return target * 1_000_000L / rate;
+  }
+
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Output stage, clips the planar mix buffer to the 16-bit range and interleaves it to the pcm bytes.
+ * The converter is chosen once for the audio format, every plane is converted with a straight loop
+ * that has no format branching. The even output channels are left, the odd are right.
+ */
+public abstract class PcmConverter {
+
+  protected final int channels;
+  protected final int sampleSize;
+  protected final int frameSize;
+  protected final ByteOrder order;
+
+  protected PcmConverter(AudioFormat audioFormat) {
+    channels = audioFormat.getChannels();
+    sampleSize = audioFormat.getSampleSizeInBits() / 8;
+    frameSize = channels * sampleSize;
+    order = audioFormat.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+  }
+
+  /**
+   * @throws IllegalArgumentException if there is no converter for the format
+   */
+  public static PcmConverter of(AudioFormat audioFormat) {
+    AudioFormat.Encoding encoding = audioFormat.getEncoding();
+    boolean bigEndian = audioFormat.isBigEndian();
+    switch (audioFormat.getSampleSizeInBits()) {
+      case 8:
+        if (encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED)) return new Unsigned8(audioFormat);
+        if (encoding.equals(AudioFormat.Encoding.PCM_SIGNED)) return new Signed8(audioFormat);
+        break;
+      case 16:
+        if (encoding.equals(AudioFormat.Encoding.PCM_SIGNED)) {
+          return bigEndian ? new Signed16BE(audioFormat) : new Signed16LE(audioFormat);
+        }
+        break;
+      case 24:
+        if (encoding.equals(AudioFormat.Encoding.PCM_SIGNED)) {
+          return bigEndian ? new Signed24BE(audioFormat) : new Signed24LE(audioFormat);
+        }
+        break;
+      case 32:
+        if (encoding.equals(AudioFormat.Encoding.PCM_FLOAT)) {
+          return bigEndian ? new Float32BE(audioFormat) : new Float32LE(audioFormat);
+        }
+        break;
+    }
+    throw new IllegalArgumentException("unsupported format " + audioFormat);
+  }
+
+  /**
+   * @param right the offset of the right plane, zero for mono mix buffer
+   * @param bytes the buffer of at least frames * frame size length
+   */
+  public void convert(int[] mixBuffer, int frames, int right, byte[] bytes) {
+    for (int channel = 0; channel < channels; channel++) {
+      convert(mixBuffer, (channel & 1) == 0 ? 0 : right, frames, bytes, channel * sampleSize);
+    }
+  }
+
+  /**
+   * Converts straight into the buffer, the direct buffer of a channel sink needs no copy.
+   * The buffer order is set to the format byte order, the position and the limit are not changed.
+   * @param buffer the buffer of at least frames * frame size capacity
+   */
+  public void convert(int[] mixBuffer, int frames, int right, ByteBuffer buffer) {
+    buffer.order(order);
+    for (int channel = 0; channel < channels; channel++) {
+      convert(mixBuffer, (channel & 1) == 0 ? 0 : right, frames, buffer, channel * sampleSize);
+    }
+  }
+
+  /**
+   * One plane to one channel, the bytes are written from the offset with the frame size stride.
+   */
+  protected abstract void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset);
+
+  /**
+   * Same for the buffer in the format byte order.
+   */
+  protected abstract void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset);
+
+  protected static int clip(int v) {
+    return Math.max(Math.min(v, Short.MAX_VALUE), Short.MIN_VALUE);
+  }
+
+  static class Unsigned8 extends PcmConverter {
+    Unsigned8(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        bytes[b] = (byte) ((clip(mixBuffer[i]) >> 8) + 0x80);
+      }
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        buffer.put(b, (byte) ((clip(mixBuffer[i]) >> 8) + 0x80));
+      }
+    }
+  }
+
+  static class Signed8 extends PcmConverter {
+    Signed8(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        bytes[b] = (byte) (clip(mixBuffer[i]) >> 8);
+      }
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        buffer.put(b, (byte) (clip(mixBuffer[i]) >> 8));
+      }
+    }
+  }
+
+  static class Signed16LE extends PcmConverter {
+    Signed16LE(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = clip(mixBuffer[i]);
+        bytes[b] = (byte) v;
+        bytes[b + 1] = (byte) (v >> 8);
+      }
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        buffer.putShort(b, (short) clip(mixBuffer[i]));
+      }
+    }
+  }
+
+  /**
+   * The buffer conversion is inherited, the buffer is in the big-endian order.
+   */
+  static class Signed16BE extends Signed16LE {
+    Signed16BE(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = clip(mixBuffer[i]);
+        bytes[b] = (byte) (v >> 8);
+        bytes[b + 1] = (byte) v;
+      }
+    }
+  }
+
+  /**
+   * The mix is 16-bit, the low byte is zero.
+   */
+  static class Signed24LE extends PcmConverter {
+    Signed24LE(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = clip(mixBuffer[i]);
+        bytes[b] = 0;
+        bytes[b + 1] = (byte) v;
+        bytes[b + 2] = (byte) (v >> 8);
+      }
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = clip(mixBuffer[i]);
+        buffer.put(b, (byte) 0);
+        buffer.put(b + 1, (byte) v);
+        buffer.put(b + 2, (byte) (v >> 8));
+      }
+    }
+  }
+
+  static class Signed24BE extends PcmConverter {
+    Signed24BE(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = clip(mixBuffer[i]);
+        bytes[b] = (byte) (v >> 8);
+        bytes[b + 1] = (byte) v;
+        bytes[b + 2] = 0;
+      }
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = clip(mixBuffer[i]);
+        buffer.put(b, (byte) (v >> 8));
+        buffer.put(b + 1, (byte) v);
+        buffer.put(b + 2, (byte) 0);
+      }
+    }
+  }
+
+  static class Float32LE extends PcmConverter {
+    Float32LE(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = Float.floatToRawIntBits(clip(mixBuffer[i]) * 0x1p-15f);
+        bytes[b] = (byte) v;
+        bytes[b + 1] = (byte) (v >> 8);
+        bytes[b + 2] = (byte) (v >> 16);
+        bytes[b + 3] = (byte) (v >> 24);
+      }
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, ByteBuffer buffer, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        buffer.putFloat(b, clip(mixBuffer[i]) * 0x1p-15f);
+      }
+    }
+  }
+
+  /**
+   * The buffer conversion is inherited, the buffer is in the big-endian order.
+   */
+  static class Float32BE extends Float32LE {
+    Float32BE(AudioFormat audioFormat) {
+      super(audioFormat);
+    }
+
+    @Override
+    protected void convert(int[] mixBuffer, int from, int frames, byte[] bytes, int offset) {
+      for (int i = from, to = from + frames, b = offset; i < to; i++, b += frameSize) {
+        int v = Float.floatToRawIntBits(clip(mixBuffer[i]) * 0x1p-15f);
+        bytes[b] = (byte) (v >> 24);
+        bytes[b + 1] = (byte) (v >> 16);
+        bytes[b + 2] = (byte) (v >> 8);
+        bytes[b + 3] = (byte) v;
+      }
+    }
+  }
+
+}
@@ -26,7 +26,6 @@ import javax.sound.midi.Sequencer;
 import javax.sound.midi.Soundbank;
 import javax.sound.midi.Synthesizer;
 import java.math.BigInteger;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.concurrent.atomic.AtomicLong;
@@ -36,14 +35,11 @@ public class PlayMod {
   public static void playAmigaMod(String modFile, boolean useSunSequencer, boolean useSunSynthesizer) {
     TnsSound sound = new TnsSound();
     try {
-      AmigaMod mod = new AmigaMod(Files.newInputStream(Paths.get(modFile)));
+      AmigaMod mod = new AmigaMod(Paths.get(modFile));
       Sequence sequence = MidiSystem.getSequence(mod.toMidi());
       Soundbank soundbank = MidiSystem.getSoundbank(mod.toSoundbank());
 
-      MidiDevice midiDevice = MidiSystem.getMidiDevice(MidiSystem.getMidiDeviceInfo()[0]);
-      midiDevice.open();
-      Receiver midiReceiver = midiDevice.getReceiver();
-
+      Receiver midiReceiver;
       if (useSunSynthesizer) {
         Synthesizer synthesizer = MidiSystem.getSynthesizer();
         synthesizer.open();
@@ -52,13 +48,13 @@ public class PlayMod {
       } else {
         // TNS synthesizer
         sound.loadAllInstruments(mod.toSoundFont());
+        sound.start();
         midiReceiver = sound;
       }
 
       MetaEventListener metaEventListener = metaMessage -> {
         if (metaMessage.getType() == 1) {
           System.out.println(new String(metaMessage.getData()));
-          sound.putWav(sound.getWav()); // FIXME: 2022-09-19 poor design
         }
       };
 
@@ -97,7 +93,7 @@ public class PlayMod {
 
   public static void playAmigaModMidi(String modFile, int[] midiInstrumentMap) {
     try {
-      AmigaMod mod = new AmigaMod(Files.newInputStream(Paths.get(modFile)), midiInstrumentMap);
+      AmigaMod mod = new AmigaMod(Paths.get(modFile), midiInstrumentMap);
       Sequence sequence = MidiSystem.getSequence(mod.toMidi());
 
       MidiDevice midiDevice = MidiSystem.getMidiDevice(MidiSystem.getMidiDeviceInfo()[0]);
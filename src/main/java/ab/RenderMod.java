@@ -0,0 +1,183 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.sampled.AudioFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Offline renderer, faster than realtime.
+ * The sequencer is driven by the sample clock instead of the wall clock, every row is rendered
+ * to exactly as many frames as it lasts.
+ */
+public class RenderMod {
+
+  public static final int WAV_HEADER_SIZE = 0x2C;
+
+  private final AmigaMod mod;
+  private final AudioFormat audioFormat;
+  private TnsSound sound;
+  private long rowMicros;
+  private long micros;
+  private long frames;
+  private long nanos;
+
+  public RenderMod(AmigaMod mod, AudioFormat audioFormat) {
+    this.mod = mod;
+    this.audioFormat = audioFormat;
+  }
+
+  public RenderMod(AmigaMod mod) {
+    this(mod, TnsSound.AUDIO_CD);
+  }
+
+  private void accept(MidiMessage midiMessage) {
+    if (!(midiMessage instanceof MetaMessage)) {
+      sound.send(midiMessage, micros);
+      return;
+    }
+    MetaMessage metaMessage = (MetaMessage) midiMessage;
+    switch (metaMessage.getType()) {
+      case 0x51: // tempo, microseconds per quarter note, 4 rows per quarter
+        rowMicros = new BigInteger(metaMessage.getData()).longValue() / 4;
+        break;
+      case 1: // row end, the row is complete
+        micros += rowMicros;
+        long end = micros * sound.getRate() / 1_000_000;
+        sound.pull((int) (end - frames));
+        frames = end;
+        break;
+    }
+  }
+
+  /**
+   * Renders the whole module to the sink.
+   * @param sink the destination for pcm data in the render audio format
+   */
+  public void render(AudioSink sink) {
+    long start = System.nanoTime();
+    sound = new TnsSound(audioFormat, sink);
+    sound.loadAllInstruments(mod.toSoundFont());
+    rowMicros = 0;
+    micros = 0;
+    frames = 0;
+    mod.getSequencer(this::accept).setRowText(false).start();
+    sound.close();
+    sound = null;
+    nanos = System.nanoTime() - start;
+  }
+
+  public void render(OutputStream output) {
+    render(AudioSink.of(output));
+  }
+
+  public void render(ByteBuffer buffer) {
+    render(new OutputStream() {
+      @Override
+      public void write(int b) {
+        buffer.put((byte) b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        buffer.put(b, off, len);
+      }
+    });
+  }
+
+  public byte[] toByteArray() {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    render(stream);
+    return stream.toByteArray();
+  }
+
+  /**
+   * Renders the whole module to wav file. Pcm is streamed to the file, the header is written when the size is known.
+   * @throws IllegalArgumentException if the audio format can not be stored in wav
+   */
+  public void renderWav(Path path) {
+    if (!isWavFormat(audioFormat)) throw new IllegalArgumentException("not a wav format: " + audioFormat);
+    try (FileChannel channel = FileChannel.open(path,
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.position(WAV_HEADER_SIZE);
+      render(AudioSink.of(channel));
+      channel.write(getWavHeader(audioFormat, channel.size() - WAV_HEADER_SIZE), 0);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * @return true for little-endian pcm and float, 8 bit pcm must be unsigned
+   */
+  public static boolean isWavFormat(AudioFormat audioFormat) {
+    AudioFormat.Encoding encoding = audioFormat.getEncoding();
+    if (audioFormat.getSampleSizeInBits() == 8) return encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED);
+    return !audioFormat.isBigEndian()
+        && (encoding.equals(AudioFormat.Encoding.PCM_SIGNED) || encoding.equals(AudioFormat.Encoding.PCM_FLOAT));
+  }
+
+  public static ByteBuffer getWavHeader(AudioFormat audioFormat, long dataSize) {
+    ByteBuffer header = ByteBuffer.allocate(WAV_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(0x46464952).putInt((int) dataSize + WAV_HEADER_SIZE - 8).putInt(0x45564157); // RIFF WAVE
+    header.putInt(0x20746D66).putInt(0x10); // fmt
+    header.putShort((short) (audioFormat.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT) ? 3 : 1)); // pcm, float
+    header.putShort((short) audioFormat.getChannels());
+    header.putInt((int) audioFormat.getSampleRate());
+    header.putInt((int) audioFormat.getFrameRate() * audioFormat.getFrameSize());
+    header.putShort((short) audioFormat.getFrameSize());
+    header.putShort((short) audioFormat.getSampleSizeInBits());
+    header.putInt(0x61746164).putInt((int) dataSize); // data
+    return header.flip();
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  public long getNanos() {
+    return nanos;
+  }
+
+  /**
+   * @return seconds of audio rendered per second of wall clock time
+   */
+  public double getRealtimeFactor() {
+    return frames / audioFormat.getFrameRate() / (nanos / 1_000_000_000.0);
+  }
+
+  public static void main(String[] args) {
+    if (args.length != 2) throw new IllegalStateException();
+    RenderMod renderMod = new RenderMod(new AmigaMod(Paths.get(args[0])));
+    renderMod.renderWav(Paths.get(args[1]));
+    System.out.println(String.format("%d frames, %.1f x realtime",
+        renderMod.getFrames(), renderMod.getRealtimeFactor()));
+  }
+
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import ab.TnsSound.Font;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.sampled.AudioFormat;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Many independent render sessions on one bounded worker pool.
+ * Every session renders one block at a time, the block is released to the workers lead time before it is played
+ * and the workers take the earliest deadline first. The sessions share the immutable sound font,
+ * each session owns only its voice state.
+ */
+public class RenderServer implements AutoCloseable {
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+
+  private final long leadNanos;
+  private final ThreadPoolExecutor workers;
+  private final List<Session> sessions = new CopyOnWriteArrayList<>();
+  private final Thread dispatcher;
+  private volatile boolean running = true;
+
+  /**
+   * @param threads the number of worker threads
+   * @param leadNanos how long before its play time the block is released to the workers
+   */
+  public RenderServer(int threads, long leadNanos) {
+    this.leadNanos = leadNanos;
+    workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(),
+        runnable -> {
+          Thread thread = new Thread(runnable, "RenderServer");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MAX_PRIORITY);
+          return thread;
+        });
+    dispatcher = new Thread(this::dispatch, "RenderServer-dispatcher");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  private void dispatch() {
+    while (running) {
+      long now = System.nanoTime();
+      long next = now + 1_000_000;
+      for (Session session : sessions) {
+        if (session.queued) continue;
+        long release = session.getDeadline() - leadNanos;
+        if (release <= now) {
+          session.queued = true;
+          workers.execute(session);
+        } else {
+          next = Math.min(next, release);
+        }
+      }
+      LockSupport.parkNanos(next - now);
+    }
+  }
+
+  /**
+   * Opens a session, the first block is due lead time from now.
+   * @param output the stream for pcm data in the audio format
+   * @param blockFrames frames rendered per scheduling quantum
+   */
+  public Session open(AudioFormat audioFormat, Font soundFont, OutputStream output, int blockFrames) {
+    Session session = new Session(audioFormat, soundFont, output, blockFrames, System.nanoTime() + leadNanos);
+    sessions.add(session);
+    return session;
+  }
+
+  public List<Session> getSessions() {
+    return sessions;
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    LockSupport.unpark(dispatcher);
+    try {
+      dispatcher.join();
+      workers.shutdown();
+      workers.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sessions.forEach(Session::close);
+  }
+
+  /**
+   * One stream, the events are sent by one producer thread with the timestamps relative to the session start.
+   */
+  public class Session implements Receiver, Runnable, Comparable<Session> {
+    private final TnsSound sound;
+    private final int blockFrames;
+    private final long blockNanos;
+    private final long startNanos;
+    private volatile boolean queued;
+    private volatile boolean closed;
+    private boolean released;
+    private volatile long blocks;
+    private volatile long cpuNanos;
+    private volatile long missedDeadlines;
+    private volatile RuntimeException failure;
+
+    private Session(AudioFormat audioFormat, Font soundFont, OutputStream output, int blockFrames, long startNanos) {
+      this.sound = new TnsSound(audioFormat, output);
+      sound.loadAllInstruments(soundFont);
+      this.blockFrames = blockFrames;
+      this.blockNanos = blockFrames * 1_000_000_000L / sound.getRate();
+      this.startNanos = startNanos;
+    }
+
+    /**
+     * @return the wall clock time when the next block is played, it must be rendered before
+     */
+    public long getDeadline() {
+      return startNanos + blocks * blockNanos;
+    }
+
+    @Override
+    public void run() {
+      long cpu = THREAD_MX_BEAN.getCurrentThreadCpuTime();
+      try {
+        if (!closed) {
+          sound.pull(blockFrames);
+          if (System.nanoTime() > getDeadline()) missedDeadlines++;
+          blocks++;
+        }
+      } catch (RuntimeException e) {
+        failure = e;
+        sessions.remove(this);
+        closed = true;
+      } finally {
+        cpuNanos += THREAD_MX_BEAN.getCurrentThreadCpuTime() - cpu;
+        release();
+      }
+    }
+
+    /**
+     * Closes the sound when the session is closed and no block is being rendered.
+     */
+    private synchronized void release() {
+      queued = false;
+      if (closed && !released) {
+        released = true;
+        sound.close();
+      }
+    }
+
+    @Override
+    public int compareTo(Session session) {
+      return Long.compare(getDeadline(), session.getDeadline());
+    }
+
+    @Override
+    public void send(MidiMessage midiMessage, long timeStamp) {
+      sound.send(midiMessage, timeStamp);
+    }
+
+    public TnsSound getSound() {
+      return sound;
+    }
+
+    public long getFrames() {
+      return blocks * blockFrames;
+    }
+
+    /**
+     * @return cpu time spent rendering this session
+     */
+    public long getCpuNanos() {
+      return cpuNanos;
+    }
+
+    public long getMissedDeadlines() {
+      return missedDeadlines;
+    }
+
+    /**
+     * @return the exception that stopped and closed the session, null if it has not failed
+     */
+    public RuntimeException getFailure() {
+      return failure;
+    }
+
+    public boolean isClosed() {
+      return closed;
+    }
+
+    /**
+     * Stops scheduling the session, the block being rendered is completed and then the sound is closed.
+     */
+    @Override
+    public void close() {
+      sessions.remove(this);
+      closed = true;
+      synchronized (this) {
+        if (!queued) release();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Polyphase windowed sinc interpolation. The fraction of the position selects one of the precomputed phases,
+ * every output frame is the dot product of 8 sample frames and the 8 coefficients of the phase.
+ * This is the scalar kernel, the multi-release jar may replace it with the vector one, see SincKernels.
+ */
+public class SincKernel {
+
+  public static final int TAPS = 8;
+  public static final int BEFORE = TAPS / 2 - 1; // frames read before the current position
+  public static final int PHASE_BITS = 8;
+  public static final int PHASES = 1 << PHASE_BITS;
+
+  /**
+   * Blackman windowed sinc, cutoff at the sample rate Nyquist frequency, every phase is normalized to unity gain.
+   * Index is phase * TAPS + tap.
+   */
+  static final float[] TABLE = new float[PHASES * TAPS];
+
+  static {
+    for (int phase = 0; phase < PHASES; phase++) {
+      double[] c = new double[TAPS];
+      double sum = 0;
+      for (int tap = 0; tap < TAPS; tap++) {
+        double x = tap - BEFORE - (double) phase / PHASES;
+        double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+        double w = x * 2 * Math.PI / TAPS;
+        c[tap] = sinc * (0.42 + 0.5 * Math.cos(w) + 0.08 * Math.cos(2 * w));
+        sum += c[tap];
+      }
+      for (int tap = 0; tap < TAPS; tap++) {
+        TABLE[phase * TAPS + tap] = (float) (c[tap] / sum);
+      }
+    }
+  }
+
+  /**
+   * Same contract as the other interpolation loops, the frames before the sample start are clamped to it.
+   */
+  public long mix(ByteBuffer samples, int[] bus, int right, int from, int to,
+      long p, long step, int vl, int vr, int sampleStart) {
+    if (right == 0) {
+      for (int i = from; i < to; i++) {
+        p += step;
+        bus[i] += (int) (sample(samples, p, sampleStart) * vl);
+      }
+      return p;
+    }
+    for (int i = from; i < to; i++) {
+      p += step;
+      float y = sample(samples, p, sampleStart);
+      bus[i] += (int) (y * vl);
+      bus[i + right] += (int) (y * vr);
+    }
+    return p;
+  }
+
+  /**
+   * @return the interpolated sample at the 32.32 position
+   */
+  protected float sample(ByteBuffer samples, long p, int sampleStart) {
+    int f = (int) (p >>> 32) - BEFORE;
+    int c = ((int) p >>> 32 - PHASE_BITS) * TAPS;
+    return f >= sampleStart ? dot(samples, f, c) : dotClamped(samples, f, c, sampleStart);
+  }
+
+  protected static float dot(ByteBuffer samples, int f, int c) {
+    float y = 0;
+    for (int tap = 0; tap < TAPS; tap++) {
+      y += samples.get(f + tap) * TABLE[c + tap];
+    }
+    return y;
+  }
+
+  protected static float dotClamped(ByteBuffer samples, int f, int c, int sampleStart) {
+    float y = 0;
+    for (int tap = 0; tap < TAPS; tap++) {
+      y += samples.get(Math.max(f + tap, sampleStart)) * TABLE[c + tap];
+    }
+    return y;
+  }
+
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+/**
+ * Java 11 has the scalar kernel only. The multi-release jar has a Java 17 version of this class
+ * that picks the vector kernel when the jdk.incubator.vector module is added.
+ */
+final class SincKernels {
+
+  private SincKernels() {
+  }
+
+  static SincKernel newKernel() {
+    return new SincKernel();
+  }
+
+}
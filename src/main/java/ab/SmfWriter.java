@@ -0,0 +1,119 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.ShortMessage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Standard midi file with one track written straight to one presized array. The deltas are accumulated
+ * across the empty ticks, channel messages use running status.
+ */
+public class SmfWriter implements Consumer<MidiMessage> {
+
+  public static final int HEADER_SIZE = 0x16;
+
+  private byte[] bytes;
+  private int size = HEADER_SIZE;
+  private int delta;
+  private int runningStatus;
+
+  /**
+   * @param capacity the expected file size, the array grows if it is not enough
+   */
+  public SmfWriter(int capacity) {
+    bytes = new byte[Math.max(capacity, HEADER_SIZE + 0x10)];
+  }
+
+  /**
+   * Moves the time of the next event.
+   */
+  public void tick(int ticks) {
+    delta += ticks;
+  }
+
+  @Override
+  public void accept(MidiMessage midiMessage) {
+    if (midiMessage instanceof ShortMessage) {
+      ShortMessage message = (ShortMessage) midiMessage;
+      ensureCapacity(8);
+      putDelta();
+      int status = message.getStatus();
+      if (status != runningStatus) bytes[size++] = (byte) status;
+      runningStatus = status < 0xF0 ? status : 0;
+      if (message.getLength() > 1) bytes[size++] = (byte) message.getData1();
+      if (message.getLength() > 2) bytes[size++] = (byte) message.getData2();
+    } else if (midiMessage instanceof MetaMessage) {
+      MetaMessage message = (MetaMessage) midiMessage;
+      byte[] data = message.getData();
+      ensureCapacity(data.length + 12);
+      putDelta();
+      bytes[size++] = (byte) 0xFF;
+      bytes[size++] = (byte) message.getType();
+      putVariableLength(data.length);
+      System.arraycopy(data, 0, bytes, size, data.length);
+      size += data.length;
+      runningStatus = 0;
+    } else {
+      byte[] message = midiMessage.getMessage(); // sysex
+      ensureCapacity(message.length + 12);
+      putDelta();
+      bytes[size++] = message[0];
+      putVariableLength(message.length - 1);
+      System.arraycopy(message, 1, bytes, size, message.length - 1);
+      size += message.length - 1;
+      runningStatus = 0;
+    }
+  }
+
+  private void ensureCapacity(int length) {
+    if (size + length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+  }
+
+  private void putDelta() {
+    putVariableLength(delta);
+    delta = 0;
+  }
+
+  private void putVariableLength(int value) {
+    for (int shift = 28; shift > 0; shift -= 7) {
+      if (value >>> shift != 0) bytes[size++] = (byte) (value >>> shift & 0x7F | 0x80);
+    }
+    bytes[size++] = (byte) (value & 0x7F);
+  }
+
+  /**
+   * Ends the track after the pending ticks and writes the header, call once.
+   * @param division ticks per quarter note
+   */
+  public byte[] toByteArray(int division) {
+    ensureCapacity(8);
+    putDelta();
+    bytes[size++] = (byte) 0xFF;
+    bytes[size++] = 0x2F;
+    bytes[size++] = 0x00;
+    ByteBuffer header = ByteBuffer.wrap(bytes);
+    header.putInt(0x4D546864).putInt(6).putShort((short) 1).putShort((short) 1).putShort((short) division);
+    header.putInt(0x4D54726B).putInt(size - HEADER_SIZE);
+    return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+  }
+
+}
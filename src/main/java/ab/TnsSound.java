@@ -16,6 +16,8 @@
 
 package ab;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.sound.midi.InvalidMidiDataException;
 import javax.sound.midi.MidiDevice;
 import javax.sound.midi.MidiMessage;
@@ -24,15 +26,19 @@ import javax.sound.midi.MidiUnavailableException;
 import javax.sound.midi.Receiver;
 import javax.sound.midi.ShortMessage;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioSystem;
-import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.SourceDataLine;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Function;
 
 public class TnsSound implements AutoCloseable, Receiver {
@@ -40,44 +46,104 @@ public class TnsSound implements AutoCloseable, Receiver {
   public static final int C4_MIDI = 60;
   public static final AudioFormat AUDIO_CD = new AudioFormat(44_100, 16, 2, true, false);
   public static final int CHANNELS = 0x40;
+  public static final int MIDI_CHANNELS = 0x10;
   public static final int NOTE_OFF_VELOCITY = 0x40;
   public static final int MIDI_DEFAULT_VELOCITY = 0x60;
+  public static final int CC_PAN = 10;
+  public static final int PAN_CENTER = 0x40;
+  public static final int EVENT_QUEUE_SIZE = 0x1000;
+  public static final int MIDI_KEYS = 0x80;
+  public static final int FINE_TUNE = 8; // steps per semitone, amiga finetune resolution
+  public static final int PARALLEL_THRESHOLD = 0x10000; // voice frames
+
+  private static final AtomicInteger INSTANCES = new AtomicInteger();
 
   private final AudioFormat audioFormat;
-  private final SourceDataLine line;
-  public final TsClip[] ch = new TsClip[CHANNELS];
+  final AudioSink sink;
+  final TnsSynth synth;
+  private final TnsSoundMetrics metrics;
+  private final PcmConverter converter;
+  private ObjectName objectName;
+  private boolean written;
+  private LatencyController latencyController;
   public Receiver midiReceiver;
-  Font soundFont;
-  public int midiOutput = 1;
+  public int midiOutput;
+  private MidiDevice midiDevice;
+  private int[] bus = new int[0];
+  private byte[] bytes = new byte[0];
+  private Thread renderThread;
+  private volatile boolean rendering;
+  private volatile RuntimeException failure;
+
+  /**
+   * Which voice is stopped when a note on finds all the voices sounding.
+   */
+  public enum Steal { OLDEST, QUIETEST }
+
+  public enum Interpolation {
+    NEAREST(0), LINEAR(1), CUBIC(2), SINC(SincKernel.TAPS - SincKernel.BEFORE - 1);
+
+    /**
+     * Frames read after the current position.
+     */
+    final int lookahead;
+
+    Interpolation(int lookahead) {
+      this.lookahead = lookahead;
+    }
+  }
 
   /**
-   * Start sound system. The output line will be open and ready for pcm output and wavetable music synthesis.
+   * Start sound system. The output line is ready for pcm output and wavetable music synthesis.
+   * The line is opened on the first output and the midi device on the first hardware midi message.
    * For pcm: sound.getWav(), write to array, sound.putWav()
    * For music: sound.loadAllInstruments(), sound.noteOffOn(), sound.putWav(sound.getWav());
    * @param audioFormat the desired audio format
    * @param latencyMs the latency in ms, must be longer than maximum estimated time between sound.putWav()
    */
   public TnsSound(AudioFormat audioFormat, int latencyMs) {
-    try {
-      MidiDevice midiDevice = MidiSystem.getMidiDevice(MidiSystem.getMidiDeviceInfo()[0]);
-      midiDevice.open();
-      this.midiReceiver = midiDevice.getReceiver();
-    } catch (MidiUnavailableException e) {
-      throw new IllegalStateException(e);
-    }
+    this(audioFormat, AudioSink.line(audioFormat,
+        latencyMs > 0 ? (int) (audioFormat.getFrameRate() * latencyMs / 1000) * audioFormat.getFrameSize() : 0));
+    this.midiOutput = 1;
+    registerMBean();
+  }
 
+  /**
+   * Start sound system on the sink. The software wavetable synthesizer is the only midi output,
+   * MidiSystem is not touched unless the midi output 1 is selected.
+   * For music: sound.loadAllInstruments(), sound.send(), sound.pull(frames);
+   * @param audioFormat the desired audio format
+   * @param sink the destination of pcm data, closed with the sound system
+   */
+  public TnsSound(AudioFormat audioFormat, AudioSink sink) {
     this.audioFormat = audioFormat;
-    try {
-      line = AudioSystem.getSourceDataLine(audioFormat);
-      if (latencyMs > 0) {
-        line.open(audioFormat, (int) (audioFormat.getFrameRate() * latencyMs / 1000) * audioFormat.getFrameSize());
-      } else {
-        line.open(audioFormat);
-      }
-    } catch (LineUnavailableException e) {
-      throw new IllegalStateException(e);
-    }
-    line.start();
+    this.synth = new TnsSynth(getRate(), getPlanes());
+    this.metrics = new TnsSoundMetrics(synth);
+    this.converter = PcmConverter.of(audioFormat);
+    this.sink = sink;
+    this.midiOutput = 2;
+  }
+
+  /**
+   * Start offline sound system. No midi device and no output line, pcm is written to the stream
+   * as fast as pull() is called, the software wavetable synthesizer is the only midi output.
+   * @param output the stream for pcm data
+   */
+  public TnsSound(AudioFormat audioFormat, OutputStream output) {
+    this(audioFormat, AudioSink.of(output));
+  }
+
+  /**
+   * Start sound system with adaptive latency. The render thread keeps between min and max latency queued
+   * in the output line, more after underruns, less after calm periods.
+   * @param minLatencyMs the lowest latency and the initial one
+   * @param maxLatencyMs the highest latency, the requested size of the line buffer
+   */
+  public TnsSound(AudioFormat audioFormat, int minLatencyMs, int maxLatencyMs) {
+    this(audioFormat, maxLatencyMs);
+    latencyController = new LatencyController(getRate(), getRate() * minLatencyMs / 1000,
+        getRate() * maxLatencyMs / 1000);
+    metrics.latency(latencyController.getLatencyMicros());
   }
 
   public TnsSound(AudioFormat audioFormat) {
@@ -88,52 +154,211 @@ public class TnsSound implements AutoCloseable, Receiver {
     this(AUDIO_CD);
   }
 
+  /**
+   * Starts the render thread. It drains the midi events at block boundaries and renders to the output line
+   * as the line has room, nothing else needs to call pull(). The sink must have a real time buffer.
+   */
+  public void start() {
+    if (sink.getBufferSize() <= 0) throw new IllegalStateException("sink is not played in real time");
+    rendering = true;
+    renderThread = new Thread(this::run, "TnsSound");
+    renderThread.setDaemon(true);
+    renderThread.setPriority(Thread.MAX_PRIORITY);
+    renderThread.start();
+  }
+
+  private void run() {
+    try {
+      if (latencyController != null) runAdaptive(); else runBlocks();
+    } catch (RuntimeException e) {
+      failure = e;
+      rendering = false;
+    }
+  }
+
+  /**
+   * @return the exception that stopped the render thread, null if it has not failed
+   */
+  public RuntimeException getFailure() {
+    return failure;
+  }
+
+  private void runBlocks() {
+    int block = sink.getBufferSize() / audioFormat.getFrameSize() / 4;
+    while (rendering) {
+      int frames = available();
+      if (frames >= block) {
+        pull(frames);
+      } else {
+        LockSupport.parkNanos(1_000_000);
+      }
+    }
+  }
+
+  private void runAdaptive() {
+    sink.available(); // opens the lazy line, the device may choose another buffer size than requested
+    int bufferFrames = sink.getBufferSize() / audioFormat.getFrameSize();
+    latencyController = latencyController.limit(bufferFrames);
+    while (rendering) {
+      int frames = latencyController.update(bufferFrames - available(), metrics.getUnderruns());
+      metrics.latency(latencyController.getLatencyMicros());
+      if (frames > 0) {
+        pull(frames);
+      } else {
+        LockSupport.parkNanos(Math.min(latencyController.getBlockFrames() * 1_000_000_000L / getRate() / 2, 1_000_000));
+      }
+    }
+  }
+
+  /**
+   * @return the output latency in microseconds, the adaptive one if enabled
+   */
+  public long getLatencyMicros() {
+    return metrics.getLatencyMicros();
+  }
+
   @Override
   public void close() {
-    line.stop();
-    line.close();
+    if (renderThread != null) {
+      rendering = false;
+      try {
+        renderThread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      renderThread = null;
+    }
+    if (objectName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException e) {
+        throw new IllegalStateException(e);
+      }
+      objectName = null;
+    }
+    sink.close();
+    if (midiDevice != null) {
+      midiDevice.close();
+      midiDevice = null;
+    }
+  }
+
+  /**
+   * Publishes the render loop metrics as ab:type=TnsSound,name=n, the line output instances are registered
+   * on construction. Unregistered on close.
+   */
+  public void registerMBean() {
+    if (objectName != null) return;
+    try {
+      objectName = new ObjectName("ab:type=TnsSound,name=" + INSTANCES.incrementAndGet());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, objectName);
+    } catch (JMException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  public TnsSoundMXBean getMetrics() {
+    return metrics;
   }
 
   public int getRate() {
     return (int) audioFormat.getSampleRate();
   }
 
+  /**
+   * @return the buffer for the frames the output line takes without blocking
+   * @throws IllegalStateException if the sink is not played in real time, getWav(frames) must be used
+   */
   public int[] getWav() {
-    return new int[line.available() / audioFormat.getFrameSize()];
+    if (sink.getBufferSize() <= 0) throw new IllegalStateException("sink is not played in real time");
+    return new int[available()];
   }
 
-  public void putWav(int[] wav) {
-    for (TsClip clip : ch) {
-      if (clip == null || clip.instrument == null) continue;
-      byte[] pcm = soundFont.pcm;
-      int sampleEnd = clip.instrument.sampleStart + clip.instrument.sampleSize;
-      int d0 = clip.sampleRate;
-      int d1 = (int) (audioFormat.getSampleRate());
-      int v = clip.volume * 2 / 3;
-      for (int i = 0; i < wav.length; i++) {
-        clip.r += d0;
-        clip.framePosition += clip.r / d1;
-        clip.r %= d1;
-        if (clip.framePosition >= sampleEnd) {
-          clip.instrument = null; // drop
-          break;
-        } else {
-          wav[i] += pcm[clip.framePosition * 2 + 1] * v;
-        }
-      }
+  public int[] getWav(int frames) {
+    return new int[frames];
+  }
+
+  /**
+   * Number of planes in the mix bus, 1 for mono, 2 for stereo.
+   * Stereo bus has separate left and right planes, the even output channels are left, the odd are right.
+   */
+  public int getPlanes() {
+    return Math.min(audioFormat.getChannels(), 2);
+  }
+
+  /**
+   * @return frames that can be written to the sink without blocking
+   */
+  public int available() {
+    return sink.available() / audioFormat.getFrameSize();
+  }
+
+  private void ensureCapacity(int frames) {
+    if (bus.length < frames * getPlanes()) {
+      bus = new int[frames * getPlanes()];
+      bytes = new byte[frames * audioFormat.getFrameSize()];
     }
+  }
 
-    byte[] bytes = new byte[wav.length * audioFormat.getFrameSize()];
-    for (int wi = 0, i = 0; wi < wav.length; wi++) {
-      int v = wav[wi];
-      v = Math.min(v, Short.MAX_VALUE);
-      v = Math.max(v, Short.MIN_VALUE);
-      for (int channel = 0; channel < audioFormat.getChannels(); channel++) {
-        bytes[i++] = (byte) v;
-        bytes[i++] = (byte) (v >> 8);
-      }
+  /**
+   * Renders the voices to the planar mix buffer, the plane n occupies [n * frames, (n + 1) * frames).
+   * Does not allocate memory.
+   * @param mixBuffer the buffer of at least frames * getPlanes() length
+   */
+  public void render(int[] mixBuffer, int frames) {
+    synth.render(mixBuffer, frames);
+  }
+
+  /**
+   * Output stage. Converts the planar mix buffer to the reusable pcm buffer in the audio format and writes it to the output.
+   * Does not allocate memory after the first call with the same or bigger number of frames.
+   */
+  public void write(int[] mixBuffer, int frames) {
+    int length = frames * audioFormat.getFrameSize();
+    int right = getPlanes() > 1 ? frames : 0;
+    ByteBuffer buffer = sink.getBuffer(length);
+    if (buffer == null) {
+      ensureCapacity(frames);
+      converter.convert(mixBuffer, frames, right, bytes);
+    } else {
+      converter.convert(mixBuffer, frames, right, buffer);
     }
-    line.write(bytes, 0, bytes.length);
+    int bufferSize = sink.getBufferSize();
+    if (written && bufferSize > 0 && sink.available() >= bufferSize) metrics.underrun();
+    if (!written && bufferSize > 0 && latencyController == null) metrics.latency(bufferSize / audioFormat.getFrameSize() * 1_000_000L / getRate());
+    written = true;
+    if (buffer == null) sink.write(bytes, 0, length); else sink.writeBuffer(length);
+  }
+
+  /**
+   * Pull model, renders and writes the frames using the internal buffers. Does not allocate memory after warm-up.
+   * For music: sound.loadAllInstruments(), sound.noteOffOn(), sound.pull(sound.available());
+   */
+  public void pull(int frames) {
+    ensureCapacity(frames);
+    long start = System.nanoTime();
+    render(bus, frames);
+    metrics.block(System.nanoTime() - start, frames);
+    write(bus, frames);
+  }
+
+  /**
+   * Mixes the voices and writes the pcm to the output. The wav is centered on all channels.
+   */
+  public void putWav(int[] wav) {
+    int frames = wav.length;
+    ensureCapacity(frames);
+    for (int plane = 0; plane < getPlanes(); plane++) {
+      System.arraycopy(wav, 0, bus, plane * frames, frames);
+    }
+    long start = System.nanoTime();
+    synth.mixVoices(bus, frames);
+    metrics.block(System.nanoTime() - start, frames);
+    write(bus, frames);
+  }
+
+  public void setInterpolation(Interpolation interpolation) {
+    synth.setInterpolation(interpolation);
   }
 
   /**
@@ -142,10 +367,34 @@ public class TnsSound implements AutoCloseable, Receiver {
    * @param soundFont with instruments
    */
   public void loadAllInstruments(Font soundFont) {
-    this.soundFont = soundFont;
-    for (int i = 0; i < ch.length; i++) {
-      ch[i] = new TsClip();
-    }
+    synth.loadAllInstruments(soundFont);
+  }
+
+  public void setMaxVoices(int maxVoices) {
+    synth.setMaxVoices(maxVoices);
+  }
+
+  public void setSteal(Steal steal) {
+    synth.setSteal(steal);
+  }
+
+  public int getActiveVoices() {
+    return synth.getActiveVoices();
+  }
+
+  public void setParallel(ForkJoinPool pool, int threshold) {
+    synth.setParallel(pool, threshold);
+  }
+
+  public void setParallel(ForkJoinPool pool) {
+    synth.setParallel(pool);
+  }
+
+  /**
+   * @return the sample clock in microseconds, the time of the next frame to be rendered
+   */
+  public long getMicrosecondPosition() {
+    return synth.getMicrosecondPosition();
   }
 
   /**
@@ -161,13 +410,27 @@ public class TnsSound implements AutoCloseable, Receiver {
     this.midiOutput = midiOutput;
   }
 
+  /**
+   * The external midi receiver, the first midi device is opened on the first call if none was set.
+   */
+  public Receiver getMidiReceiver() {
+    if (midiReceiver == null) try {
+      midiDevice = MidiSystem.getMidiDevice(MidiSystem.getMidiDeviceInfo()[0]);
+      midiDevice.open();
+      midiReceiver = midiDevice.getReceiver();
+    } catch (MidiUnavailableException e) {
+      throw new IllegalStateException(e);
+    }
+    return midiReceiver;
+  }
+
   public void sendMessage(int command, int channel, int data1, int data2, long timeStamp) {
     ShortMessage message = new ShortMessage();
     try {
       message.setMessage(command, channel, data1, data2);
     } catch (InvalidMidiDataException ignore) {
     }
-    midiReceiver.send(message, timeStamp);
+    getMidiReceiver().send(message, timeStamp);
   }
 
   public void noteOffOn(int channel, int sample, int key, boolean on) {
@@ -190,51 +453,45 @@ public class TnsSound implements AutoCloseable, Receiver {
       sendMessage(on ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF, channel, key, volume, -1);
     }
     if ((midiOutput & 2) != 0) {
-      if (on) {
-        ch[channel].sampleRate = (int) (soundFont.c4spd * Math.exp((key - C4_MIDI) / 12.0 * Math.log(2)));
-        Instrument instrument = soundFont.getInstruments()[sample];
-        ch[channel].instrument = instrument;
-        ch[channel].volume = volume;
-        ch[channel].framePosition = instrument.sampleStart;
-      } else {
-        ch[channel].instrument = null;
+      if (sample != 0) {
+        synth.queue(ShortMessage.PROGRAM_CHANGE, channel, sample, 0, -1);
       }
+      synth.queue(on ? ShortMessage.NOTE_ON : ShortMessage.NOTE_OFF, channel, key, volume, -1);
     }
   }
 
+  /**
+   * Pan position, the controller 10.
+   * @param channel midi channel 0-15 or tracker 0-3 (0-7)
+   * @param pan 0 - left, 64 - center, 127 - right
+   */
+  public void pan(int channel, int pan) {
+    if ((midiOutput & 1) != 0) {
+      sendMessage(ShortMessage.CONTROL_CHANGE, channel, CC_PAN, pan, -1);
+    }
+    if ((midiOutput & 2) != 0) {
+      synth.queue(ShortMessage.CONTROL_CHANGE, channel, CC_PAN, pan, -1);
+    }
+  }
+
+  /**
+   * Without the render thread not more than EVENT_QUEUE_SIZE events may be sent between two renders.
+   * @throws IllegalStateException if the event queue is full and no other thread renders
+   */
   @Override
   public void send(MidiMessage midiMessage, long timeStamp) {
-    if (midiMessage instanceof ShortMessage) {
-      ShortMessage shortMessage = (ShortMessage) midiMessage;
-      int channel = shortMessage.getChannel();
-      switch (shortMessage.getCommand()) {
-        case ShortMessage.PROGRAM_CHANGE:
-          int sample = shortMessage.getData1();
-          Instrument instrument = soundFont.getInstruments()[sample];
-          ch[channel].instrument = instrument;
-          break;
-        case ShortMessage.NOTE_ON:
-          int note = shortMessage.getData1();
-          int velocity = shortMessage.getData2();
-          ch[channel].sampleRate = (int) (soundFont.c4spd * Math.exp((note - C4_MIDI) / 12.0 * Math.log(2)));
-          ch[channel].volume = velocity;
-          ch[channel].framePosition = ch[channel].instrument.sampleStart;
-          break;
-        case ShortMessage.NOTE_OFF:
-          ch[channel].instrument = null;
-          break;
-        default:
-          throw new IllegalStateException("not implemented");
-      }
-    }
+    synth.send(midiMessage, timeStamp);
   }
 
   public static class TsClip {
     Instrument instrument;
-    int sampleRate;
+    int channel;
+    int key;
     int volume;
-    int framePosition;
-    int r;
+    int pan = PAN_CENTER;
+    long position;
+    long step;
+    long started;
   }
 
   public static class Instrument {
@@ -243,6 +500,7 @@ public class TnsSound implements AutoCloseable, Receiver {
     int sampleSize;
     int loopStart;
     int loopSize;
+    int fineTune;
     List<Integer> presetGenerators = new ArrayList<>();
     List<Integer> instrumentGenerators = new ArrayList<>();
 
@@ -264,21 +522,38 @@ public class TnsSound implements AutoCloseable, Receiver {
       loopStart = start;
       loopSize = size;
     }
+
+    /**
+     * @param fineTune in 1/8 semitones, -8 to 7 for amiga samples
+     */
+    public void setFineTune(int fineTune) {
+      instrumentGenerators.add(52); // fineTune
+      instrumentGenerators.add(fineTune * 100 / FINE_TUNE); // cents
+      this.fineTune = fineTune;
+    }
   }
 
+  /**
+   * Immutable after the instruments are set up, one font may be shared by any number of synthesizers.
+   * The samples are 8-bit signed, one byte per frame, read with absolute gets only.
+   */
   public static class Font {
-    byte[] pcm;
-    int c4spd;
-    String name;
+    final ByteBuffer samples;
+    final int c4spd;
+    final String name;
     private int programNumber;
     final Instrument[] instruments;
+    private final Map<Integer, long[]> steps = new ConcurrentHashMap<>();
 
-    public Font(int instruments, byte[] pcm, int c4spd, String name) {
+    /**
+     * @param samples 8-bit signed sample data, not copied, e.g. a view of the module bytes
+     */
+    public Font(int instruments, ByteBuffer samples, int c4spd, String name) {
       this.instruments = new Instrument[instruments];
       for (int i = 0; i < instruments; i++) {
         this.instruments[i] = new Instrument();
       }
-      this.pcm = pcm;
+      this.samples = samples.asReadOnlyBuffer();
       this.c4spd = c4spd;
       this.name = name;
     }
@@ -287,6 +562,21 @@ public class TnsSound implements AutoCloseable, Receiver {
       return instruments;
     }
 
+    /**
+     * Step table for the output rate, 32.32 fixed point frames of the sample per output frame.
+     * Index is key * FINE_TUNE + fine tune, computed once per rate, the note on is a table lookup.
+     */
+    public long[] getSteps(int rate) {
+      return steps.computeIfAbsent(rate, r -> {
+        long[] result = new long[MIDI_KEYS * FINE_TUNE];
+        for (int i = 0; i < result.length; i++) {
+          int sampleRate = (int) (c4spd * Math.exp((i - C4_MIDI * FINE_TUNE) / 12.0 / FINE_TUNE * Math.log(2)));
+          result[i] = ((long) sampleRate << 32) / r;
+        }
+        return result;
+      });
+    }
+
     private byte[] bag(String id, Function<Instrument, List<Integer>> f) {
       ByteBuffer bytes = newChunk(id, (instruments.length + 1) * 4);
       bytes.putInt(0);
@@ -312,6 +602,17 @@ public class TnsSound implements AutoCloseable, Receiver {
       return bytes.array();
     }
 
+    /**
+     * Sound font samples are 16-bit, the 8-bit sample goes to the high byte. Only the export needs the copy.
+     */
+    private byte[] toPcm16() {
+      byte[] pcm16 = new byte[samples.limit() * 2];
+      for (int i = 0, i1 = 1; i < samples.limit(); i++, i1 += 2) {
+        pcm16[i1] = samples.get(i);
+      }
+      return pcm16;
+    }
+
     public byte[] toByteArray() {
       int ins1 = instruments.length + 1;
       ByteBuffer phdr = newChunk("phdr", ins1 * 0x26);
@@ -351,7 +652,7 @@ public class TnsSound implements AutoCloseable, Receiver {
               chunk("isng", paddedStr("TNS Sound System", -1)),
               chunk("INAM", paddedStr(name, -1))),
           list("LIST", "sdta",
-              chunk("smpl", pcm)),
+              chunk("smpl", toPcm16())),
           list("LIST", "pdta",
               phdr.array(),
               bag("pbag", pfn), chunk("pmod", new byte[10]), gen("pgen", pfn, 41), // instrument
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+/**
+ * Render loop metrics of one TnsSound instance.
+ */
+public interface TnsSoundMXBean {
+
+  long getBlocks();
+
+  /**
+   * @return blocks per render time bucket, the bucket n counts blocks rendered in [2^n, 2^(n+1)) microseconds
+   */
+  long[] getRenderTimeHistogram();
+
+  long getRenderTimeMaxMicros();
+
+  /**
+   * @return 1 - time spent mixing / duration of the audio mixed, since the start
+   */
+  double getHeadroom();
+
+  /**
+   * @return the headroom of the slowest block
+   */
+  double getMinHeadroom();
+
+  /**
+   * @return writes that found the output line drained
+   */
+  long getUnderruns();
+
+  int getActiveVoices();
+
+  /**
+   * @return the output latency, the line buffer or the adaptive target queue depth
+   */
+  long getLatencyMicros();
+
+  /**
+   * @return events applied since the start, the clients compute the rate from two reads
+   */
+  long getEventsApplied();
+
+  void reset();
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Written by the render thread once per block, read by the jmx clients. No allocation on the render side.
+ */
+public class TnsSoundMetrics implements TnsSoundMXBean {
+
+  public static final int BUCKETS = 0x18;
+
+  private final TnsSynth synth;
+  private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+  private volatile long blocks;
+  private volatile long renderNanos;
+  private volatile long audioNanos;
+  private volatile long maxRenderNanos;
+  private volatile double minHeadroom = 1;
+  private volatile long underruns;
+  private volatile int activeVoices;
+  private volatile long latencyMicros;
+
+  public TnsSoundMetrics(TnsSynth synth) {
+    this.synth = synth;
+  }
+
+  /**
+   * Render thread.
+   */
+  void block(long nanos, int frames) {
+    long micros = nanos / 1000;
+    histogram.incrementAndGet(Math.min(63 - Long.numberOfLeadingZeros(micros | 1), BUCKETS - 1));
+    long blockNanos = frames * 1_000_000_000L / synth.getRate();
+    blocks++;
+    renderNanos += nanos;
+    audioNanos += blockNanos;
+    if (nanos > maxRenderNanos) maxRenderNanos = nanos;
+    if (blockNanos > 0) minHeadroom = Math.min(minHeadroom, 1 - (double) nanos / blockNanos);
+    activeVoices = synth.getActiveVoices();
+  }
+
+  /**
+   * Render thread.
+   */
+  void underrun() {
+    underruns++;
+  }
+
+  void latency(long micros) {
+    latencyMicros = micros;
+  }
+
+  @Override
+  public long getBlocks() {
+    return blocks;
+  }
+
+  @Override
+  public long[] getRenderTimeHistogram() {
+    long[] result = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      result[i] = histogram.get(i);
+    }
+    return result;
+  }
+
+  @Override
+  public long getRenderTimeMaxMicros() {
+    return maxRenderNanos / 1000;
+  }
+
+  @Override
+  public double getHeadroom() {
+    long audio = audioNanos;
+    return audio == 0 ? 1 : 1 - (double) renderNanos / audio;
+  }
+
+  @Override
+  public double getMinHeadroom() {
+    return minHeadroom;
+  }
+
+  @Override
+  public long getUnderruns() {
+    return underruns;
+  }
+
+  @Override
+  public int getActiveVoices() {
+    return activeVoices;
+  }
+
+  @Override
+  public long getLatencyMicros() {
+    return latencyMicros;
+  }
+
+  @Override
+  public long getEventsApplied() {
+    return synth.getEventsApplied();
+  }
+
+  /**
+   * Not synchronized with the render thread, a block in flight may be counted on either side.
+   */
+  @Override
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram.set(i, 0);
+    }
+    blocks = 0;
+    renderNanos = 0;
+    audioNanos = 0;
+    maxRenderNanos = 0;
+    minHeadroom = 1;
+    underruns = 0;
+  }
+
+}
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import ab.TnsSound.Font;
+import ab.TnsSound.Instrument;
+import ab.TnsSound.Interpolation;
+import ab.TnsSound.Steal;
+import ab.TnsSound.TsClip;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import static ab.TnsSound.CC_PAN;
+import static ab.TnsSound.CHANNELS;
+import static ab.TnsSound.EVENT_QUEUE_SIZE;
+import static ab.TnsSound.FINE_TUNE;
+import static ab.TnsSound.MIDI_CHANNELS;
+import static ab.TnsSound.PAN_CENTER;
+import static ab.TnsSound.PARALLEL_THRESHOLD;
+
+/**
+ * Wavetable synthesizer, the voice state of one session and nothing else.
+ * No audio line and no midi device, the shared sound font is read only.
+ * The events may be sent from one producer thread, the rendering is done by one render thread.
+ */
+public class TnsSynth implements Receiver {
+
+  private static final SincKernel SINC_KERNEL = SincKernels.newKernel();
+
+  private final int rate;
+  private final int planes;
+  TsClip[] voices;
+  private int activeVoices;
+  private Steal steal = Steal.OLDEST;
+  private final int[] program = new int[MIDI_CHANNELS];
+  private final int[] pan = new int[MIDI_CHANNELS];
+  private Font soundFont;
+  private long[] steps;
+  private Interpolation interpolation = Interpolation.NEAREST;
+  private final EventQueue events = new EventQueue(EVENT_QUEUE_SIZE);
+  private volatile long clock;
+  private volatile long eventsApplied;
+  private volatile Thread renderer;
+  private ForkJoinPool pool;
+  private int parallelThreshold = PARALLEL_THRESHOLD;
+  private MixTask[] mixTasks = new MixTask[0];
+  private final ForkAll forkAll = new ForkAll();
+
+  /**
+   * @param rate the output sample rate
+   * @param planes 1 for mono, 2 for stereo mix bus
+   */
+  public TnsSynth(int rate, int planes) {
+    this.rate = rate;
+    this.planes = planes;
+    Arrays.fill(pan, PAN_CENTER);
+    setMaxVoices(CHANNELS);
+  }
+
+  public int getRate() {
+    return rate;
+  }
+
+  public int getPlanes() {
+    return planes;
+  }
+
+  /**
+   * Renders the voices to the planar mix buffer, the plane n occupies [n * frames, (n + 1) * frames).
+   * Does not allocate memory.
+   * @param mixBuffer the buffer of at least frames * getPlanes() length
+   */
+  public void render(int[] mixBuffer, int frames) {
+    Arrays.fill(mixBuffer, 0, frames * planes, 0);
+    mixVoices(mixBuffer, frames);
+  }
+
+  /**
+   * The block is split at the event frames, the events are applied exactly at their frame.
+   */
+  void mixVoices(int[] mixBuffer, int frames) {
+    if (renderer != Thread.currentThread()) renderer = Thread.currentThread();
+    int right = planes > 1 ? frames : 0;
+    for (int from = 0, until; from < frames; from = until) {
+      until = applyEvents(clock + from, frames - from) + from;
+      if (pool != null && activeVoices > 1 && (until - from) * activeVoices >= parallelThreshold) {
+        mixParallel(mixBuffer, frames, right, from, until);
+        for (int i = 0; i < activeVoices;) {
+          if (voices[i].instrument == null) release(i); else i++;
+        }
+      } else for (int i = 0; i < activeVoices;) {
+        TsClip clip = voices[i];
+        mix(clip, mixBuffer, right, from, until);
+        if (clip.instrument == null) release(i); else i++;
+      }
+    }
+    clock += frames;
+  }
+
+  /**
+   * The active voices are split between the pool workers, each worker mixes its voices to its own partial buffer,
+   * the partial buffers are summed to the mix buffer when all workers are done.
+   */
+  private void mixParallel(int[] mixBuffer, int frames, int right, int from, int until) {
+    int n = mixTasks.length;
+    for (int t = 0; t < n; t++) {
+      MixTask task = mixTasks[t];
+      if (task.partial.length < frames * planes) task.partial = new int[frames * planes];
+      task.right = right;
+      task.from = from;
+      task.until = until;
+      task.voiceFrom = activeVoices * t / n;
+      task.voiceTo = activeVoices * (t + 1) / n;
+      task.reinitialize();
+    }
+    forkAll.reinitialize();
+    pool.invoke(forkAll);
+    for (MixTask task : mixTasks) {
+      int[] partial = task.partial;
+      for (int i = from; i < until; i++) {
+        mixBuffer[i] += partial[i];
+      }
+      if (right == 0) continue;
+      for (int i = from + right; i < until + right; i++) {
+        mixBuffer[i] += partial[i];
+      }
+    }
+  }
+
+  private class MixTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    int[] partial = new int[0];
+    int right;
+    int from;
+    int until;
+    int voiceFrom;
+    int voiceTo;
+
+    @Override
+    protected void compute() {
+      Arrays.fill(partial, from, until, 0);
+      if (right != 0) Arrays.fill(partial, from + right, until + right, 0);
+      for (int i = voiceFrom; i < voiceTo; i++) {
+        mix(voices[i], partial, right, from, until);
+      }
+    }
+  }
+
+  private class ForkAll extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected void compute() {
+      invokeAll(mixTasks);
+    }
+  }
+
+  /**
+   * Enables parallel mixing of the voices on the pool, null - single thread mixing.
+   * The block is mixed in parallel if the number of frames multiplied by the number of active voices
+   * is not less than the threshold, smaller blocks are cheaper to mix in one thread.
+   * Must not be called while the render thread is running.
+   */
+  public void setParallel(ForkJoinPool pool, int threshold) {
+    this.pool = pool;
+    this.parallelThreshold = threshold;
+    mixTasks = new MixTask[pool == null ? 0 : pool.getParallelism()];
+    for (int i = 0; i < mixTasks.length; i++) {
+      mixTasks[i] = new MixTask();
+    }
+  }
+
+  public void setParallel(ForkJoinPool pool) {
+    setParallel(pool, PARALLEL_THRESHOLD);
+  }
+
+  /**
+   * @return the sample clock in microseconds, the time of the next frame to be rendered
+   */
+  public long getMicrosecondPosition() {
+    return clock * 1_000_000 / rate;
+  }
+
+  /**
+   * The position is 32.32 fixed point frame number, the step is added to it once per output frame.
+   * Frames left until the sample end or the loop end are computed once per chunk,
+   * the interpolation loops have no bound checks. The right plane follows the left plane at the offset, zero for mono.
+   * Mono has its own loops, one write per frame. The pan center 0x40 is full volume on both sides.
+   */
+  private void mix(TsClip clip, int[] bus, int right, int from, int to) {
+    Instrument instrument = clip.instrument;
+    ByteBuffer samples = soundFont.samples;
+    int lookahead = interpolation.lookahead;
+    boolean loop = instrument.loopSize > 0;
+    int endFrame = instrument.sampleStart + (loop ? instrument.loopStart + instrument.loopSize
+        : instrument.sampleSize - lookahead);
+    long end = (long) Math.min(endFrame, samples.limit() - lookahead) << 32;
+    long loopSize = (long) instrument.loopSize << 32;
+    long p = clip.position;
+    long step = clip.step;
+    int v = clip.volume * 2 / 3;
+    boolean mono = right == 0;
+    int vl = mono || clip.pan <= 0x40 ? v : v * ((0x7F - clip.pan) * 0x40 / 0x3F) >> 6;
+    int vr = mono ? 0 : v * Math.min(clip.pan, 0x40) >> 6;
+    while (true) {
+      int frames = p < end ? (int) Math.min((end - 1 - p) / step, to - from) : 0;
+      int until = from + frames;
+      switch (interpolation) {
+        case NEAREST: p = mixNearest(samples, bus, right, from, until, p, step, vl, vr); break;
+        case LINEAR: p = mixLinear(samples, bus, right, from, until, p, step, vl, vr); break;
+        case CUBIC: p = mixCubic(samples, bus, right, from, until, p, step, vl, vr, instrument.sampleStart); break;
+        case SINC: p = SINC_KERNEL.mix(samples, bus, right, from, until, p, step, vl, vr, instrument.sampleStart); break;
+      }
+      from = until;
+      if (from == to) break;
+      if (!loop) {
+        clip.instrument = null; // drop
+        break;
+      }
+      while (p + step >= end) p -= loopSize;
+    }
+    clip.position = p;
+  }
+
+  private static long mixNearest(ByteBuffer samples, int[] bus, int right, int from, int to,
+      long p, long step, int vl, int vr) {
+    if (right == 0) {
+      for (int i = from; i < to; i++) {
+        p += step;
+        bus[i] += samples.get((int) (p >>> 32)) * vl;
+      }
+      return p;
+    }
+    for (int i = from; i < to; i++) {
+      p += step;
+      int s = samples.get((int) (p >>> 32));
+      bus[i] += s * vl;
+      bus[i + right] += s * vr;
+    }
+    return p;
+  }
+
+  private static long mixLinear(ByteBuffer samples, int[] bus, int right, int from, int to,
+      long p, long step, int vl, int vr) {
+    if (right == 0) {
+      for (int i = from; i < to; i++) {
+        p += step;
+        bus[i] += linear(samples, p) * vl >> 15;
+      }
+      return p;
+    }
+    for (int i = from; i < to; i++) {
+      p += step;
+      int s = linear(samples, p);
+      bus[i] += s * vl >> 15;
+      bus[i + right] += s * vr >> 15;
+    }
+    return p;
+  }
+
+  private static int linear(ByteBuffer samples, long p) {
+    int f = (int) (p >>> 32);
+    int s0 = samples.get(f);
+    int t = (int) p >>> 17;
+    return (s0 << 15) + (samples.get(f + 1) - s0) * t;
+  }
+
+  /**
+   * Catmull-Rom spline through 4 points.
+   */
+  private static long mixCubic(ByteBuffer samples, int[] bus, int right, int from, int to,
+      long p, long step, int vl, int vr, int sampleStart) {
+    if (right == 0) {
+      for (int i = from; i < to; i++) {
+        p += step;
+        bus[i] += (int) (cubic(samples, p, sampleStart) * vl);
+      }
+      return p;
+    }
+    for (int i = from; i < to; i++) {
+      p += step;
+      float y = cubic(samples, p, sampleStart);
+      bus[i] += (int) (y * vl);
+      bus[i + right] += (int) (y * vr);
+    }
+    return p;
+  }
+
+  private static float cubic(ByteBuffer samples, long p, int sampleStart) {
+    int f = (int) (p >>> 32);
+    int s = samples.get(Math.max(f - 1, sampleStart));
+    int s0 = samples.get(f);
+    int s1 = samples.get(f + 1);
+    int s2 = samples.get(f + 2);
+    float t = ((int) p >>> 1) * 0x1p-31f;
+    float c1 = (s1 - s) * 0.5f;
+    float c2 = s - 2.5f * s0 + 2 * s1 - 0.5f * s2;
+    float c3 = 0.5f * (s2 - s) + 1.5f * (s0 - s1);
+    return ((c3 * t + c2) * t + c1) * t + s0;
+  }
+
+  public void setInterpolation(Interpolation interpolation) {
+    this.interpolation = interpolation;
+  }
+
+  /**
+   * Loads instruments from sound font, the sound font is not changed and can be shared.
+   * The voices of the previous font are stopped, the voice cap, programs and pans are kept.
+   */
+  public void loadAllInstruments(Font soundFont) {
+    this.soundFont = soundFont;
+    this.steps = soundFont.getSteps(rate);
+    activeVoices = 0;
+  }
+
+  /**
+   * Sets the voice cap, the voices are preallocated and all of them are stopped.
+   * Must not be called while the render thread is running.
+   */
+  public void setMaxVoices(int maxVoices) {
+    if (maxVoices < 1) throw new IllegalArgumentException("max voices " + maxVoices);
+    voices = new TsClip[maxVoices];
+    for (int i = 0; i < maxVoices; i++) {
+      voices[i] = new TsClip();
+    }
+    activeVoices = 0;
+  }
+
+  public void setSteal(Steal steal) {
+    this.steal = steal;
+  }
+
+  /**
+   * @return the number of sounding voices, the render thread value
+   */
+  public int getActiveVoices() {
+    return activeVoices;
+  }
+
+  /**
+   * @return events taken from the queue by the render thread since the start
+   */
+  public long getEventsApplied() {
+    return eventsApplied;
+  }
+
+  /**
+   * The active voices are the first activeVoices of the voices array, idle voices are not visited.
+   * The released voice is swapped with the last active one.
+   */
+  private void release(int i) {
+    TsClip clip = voices[i];
+    clip.instrument = null;
+    voices[i] = voices[--activeVoices];
+    voices[activeVoices] = clip;
+  }
+
+  /**
+   * @return the index of the idle voice or the stolen one
+   */
+  private int allocate() {
+    if (activeVoices < voices.length) return activeVoices++;
+    int result = 0;
+    for (int i = 1; i < activeVoices; i++) {
+      TsClip clip = voices[i];
+      TsClip r = voices[result];
+      if ((steal == Steal.QUIETEST && clip.volume != r.volume) ? clip.volume < r.volume : clip.started < r.started) {
+        result = i;
+      }
+    }
+    return result;
+  }
+
+  private void noteOn(TsClip clip, Instrument instrument, int key, int volume) {
+    int tune = key * FINE_TUNE + instrument.fineTune;
+    clip.step = steps[Math.max(0, Math.min(tune, steps.length - 1))];
+    clip.instrument = instrument;
+    clip.volume = volume;
+    clip.position = (long) instrument.sampleStart << 32;
+  }
+
+  /**
+   * The events are encoded to long as frame << 24 | status | data1 << 8 | data2 << 16.
+   * The queue has one producer, the midi messages and the notes must be sent from the same thread.
+   * If the queue is full the producer waits for the render thread. The producer that renders itself,
+   * sends before anything is rendered or after the render thread has stopped would wait forever
+   * and gets an exception instead.
+   * @param timeStamp in microseconds of the sample clock, -1 - immediately
+   * @throws IllegalStateException if the queue is full and no other live thread renders
+   */
+  void queue(int command, int channel, int data1, int data2, long timeStamp) {
+    long frame = timeStamp < 0 ? 0 : timeStamp * rate / 1_000_000;
+    long event = frame << 24 | command | channel | data1 << 8 | data2 << 16;
+    if (events.offer(event)) return;
+    Thread renderer = this.renderer;
+    if (renderer == null || renderer == Thread.currentThread() || !renderer.isAlive()) {
+      throw new IllegalStateException("event queue full");
+    }
+    events.put(event);
+  }
+
+  /**
+   * Applies the queued events due at the frame to the voices, called by the render thread.
+   * The late events are applied immediately, the notes of the programs missing in the sound font are not played.
+   * @return frames until the next event, not more than the limit
+   */
+  private int applyEvents(long frame, int limit) {
+    while (!events.isEmpty()) {
+      long next = events.peek();
+      if (next >>> 24 > frame) return (int) Math.min(limit, (next >>> 24) - frame);
+      int event = (int) events.poll();
+      eventsApplied++;
+      int channel = event & 0x0F;
+      int data1 = event >> 8 & 0xFF;
+      int data2 = event >> 16 & 0xFF;
+      int command = event & 0xF0;
+      if (command == ShortMessage.NOTE_ON && data2 == 0) command = ShortMessage.NOTE_OFF;
+      switch (command) {
+        case ShortMessage.PROGRAM_CHANGE:
+          program[channel] = data1;
+          break;
+        case ShortMessage.NOTE_ON:
+          Instrument[] instruments = soundFont.getInstruments();
+          if (program[channel] >= instruments.length) break;
+          TsClip clip = voices[allocate()];
+          noteOn(clip, instruments[program[channel]], data1, data2);
+          clip.channel = channel;
+          clip.key = data1;
+          clip.pan = pan[channel];
+          clip.started = frame;
+          break;
+        case ShortMessage.NOTE_OFF:
+          for (int i = 0; i < activeVoices;) {
+            if (voices[i].channel == channel && voices[i].key == data1) release(i); else i++;
+          }
+          break;
+        case ShortMessage.CONTROL_CHANGE:
+          if (data1 != CC_PAN) break;
+          pan[channel] = data2;
+          for (int i = 0; i < activeVoices; i++) {
+            if (voices[i].channel == channel) voices[i].pan = data2;
+          }
+          break;
+      }
+    }
+    return limit;
+  }
+
+  @Override
+  public void send(MidiMessage midiMessage, long timeStamp) {
+    if (midiMessage instanceof ShortMessage) {
+      ShortMessage shortMessage = (ShortMessage) midiMessage;
+      switch (shortMessage.getCommand()) {
+        case ShortMessage.PROGRAM_CHANGE:
+        case ShortMessage.NOTE_ON:
+        case ShortMessage.NOTE_OFF:
+        case ShortMessage.CONTROL_CHANGE:
+          queue(shortMessage.getCommand(), shortMessage.getChannel(),
+              shortMessage.getData1(), shortMessage.getData2(), timeStamp);
+          break;
+        default:
+          throw new IllegalStateException("not implemented");
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+}
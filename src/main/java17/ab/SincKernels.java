@@ -0,0 +1,42 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The vector kernel if the jdk.incubator.vector module is added (--add-modules jdk.incubator.vector),
+ * the hardware has 8 float lanes and the incubator api of this jdk links. The scalar kernel otherwise.
+ */
+final class SincKernels {
+
+  private SincKernels() {
+  }
+
+  static SincKernel newKernel() {
+    if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) try {
+      SincKernel kernel = VectorSincKernel.newKernel();
+      if (kernel != null) {
+        kernel.mix(ByteBuffer.allocate(SincKernel.TAPS), new int[1], 0, 0, 1, (long) SincKernel.BEFORE << 32, 0, 1, 1, 0);
+        return kernel;
+      }
+    } catch (LinkageError ignore) {
+    }
+    return new SincKernel();
+  }
+
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The 8 taps are one vector: 8 sample bytes widened to 8 floats, multiplied by the phase coefficients and summed.
+ */
+class VectorSincKernel extends SincKernel {
+
+  private static final VectorSpecies<Byte> BYTES = ByteVector.SPECIES_64;
+  private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_256;
+
+  /**
+   * @return null if the hardware vectors are narrower than the taps
+   */
+  static SincKernel newKernel() {
+    return FloatVector.SPECIES_PREFERRED.length() < TAPS ? null : new VectorSincKernel();
+  }
+
+  @Override
+  protected float sample(ByteBuffer samples, long p, int sampleStart) {
+    int f = (int) (p >>> 32) - BEFORE;
+    int c = ((int) p >>> 32 - PHASE_BITS) * TAPS;
+    if (f < sampleStart) return dotClamped(samples, f, c, sampleStart);
+    FloatVector s = (FloatVector) ByteVector.fromByteBuffer(BYTES, samples, f, ByteOrder.nativeOrder())
+        .convertShape(VectorOperators.B2F, FLOATS, 0);
+    return s.mul(FloatVector.fromArray(FLOATS, TABLE, c)).reduceLanes(VectorOperators.ADD);
+  }
+
+}
@@ -18,10 +18,71 @@ package ab;
 
 import org.junit.jupiter.api.Test;
 
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MetaMessage;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.MidiSystem;
+import javax.sound.midi.Sequence;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.Track;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 class AmigaModTest {
 
+  public static final int SAMPLE_SIZE = 0x800;
+
+  /**
+   * One pattern, one square wave sample, four notes at row 0 and a note every 8 rows on the first channel.
+   */
+  static byte[] newMod() {
+    return newMod(AmigaMod.MK, 4);
+  }
+
+  /**
+   * The same song for the signature, a note on every channel at row 0. Signature 0 is the 15 samples layout.
+   */
+  static byte[] newMod(int signature, int channels) {
+    int orderPos = signature == 0 ? 0x1D6 : 0x3B6;
+    int patternPos = signature == 0 ? 0x258 : 0x43C;
+    int samplePos = patternPos + 0x100 * channels;
+    ByteBuffer bytes = ByteBuffer.allocate(samplePos + SAMPLE_SIZE);
+    bytes.put("test".getBytes());
+    bytes.position(0x14).put("square".getBytes());
+    bytes.putShort(0x14 + 0x16, (short) (SAMPLE_SIZE / 2)).put(0x14 + 0x19, (byte) 0x40);
+    bytes.putShort(0x14 + 0x1C, (short) 1);
+    bytes.put(orderPos, (byte) 1).put(orderPos + 1, (byte) 0x7F);
+    if (signature != 0) bytes.putInt(0x438, signature);
+    for (int c = 0; c < channels; c++) {
+      int position = signature == AmigaMod.FLT8 ? (c >> 2) * 0x400 + (c & 3) * 4 : c * 4;
+      bytes.putInt(patternPos + position, 0x00001000 | AmigaMod.Note.noteMidiToCode(key(c)) << 16);
+    }
+    for (int row = 8; row < 0x40; row += 8) {
+      int position = signature == AmigaMod.FLT8 ? row * 0x10 : row * channels * 4;
+      bytes.putInt(patternPos + position, 0x00001000 | AmigaMod.Note.noteMidiToCode(48 + row / 8) << 16);
+    }
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      bytes.put(samplePos + i, (byte) ((i & 0x10) == 0 ? 0x40 : -0x40));
+    }
+    return bytes.array();
+  }
+
+  static int key(int channel) {
+    return 48 + (12 + channel * 4) % 36;
+  }
+
   @Test
   void testNoteCode() {
     int[] codes = {
@@ -33,5 +94,176 @@ class AmigaModTest {
       assertEquals(i + 48, AmigaMod.Note.noteCodeToMidi(codes[i]));
       assertEquals(codes[i], AmigaMod.Note.noteMidiToCode(i + 48));
     }
+    for (int code = 1; code < 0x1000; code++) {
+      double log2 = Math.log((double) AmigaMod.C4_DIVISOR / code) / Math.log(2);
+      assertEquals(Math.round(AmigaMod.C4_MIDI + log2 * 12), AmigaMod.Note.noteCodeToMidi(code));
+    }
+  }
+
+  @Test
+  void soundFont() {
+    byte[] bytes = newMod();
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(bytes));
+    TnsSound.Font font = mod.toSoundFont();
+    assertTrue(font.samples.isReadOnly());
+    assertEquals(bytes.length, font.samples.limit());
+    mod.bytes.put(0x83C, (byte) 1);
+    assertEquals(1, font.samples.get(0x83C), "no copy");
+    byte[] sf2 = font.toByteArray();
+    ByteBuffer smpl = ByteBuffer.wrap(sf2).order(ByteOrder.LITTLE_ENDIAN);
+    int offset = new String(sf2, StandardCharsets.ISO_8859_1).indexOf("smpl") + 8;
+    assertEquals(bytes.length * 2, smpl.getInt(offset - 4));
+    assertEquals(1 << 8, smpl.getShort(offset + 0x83C * 2));
+    assertEquals(-0x40 << 8, smpl.getShort(offset + (0x83C + 0x10) * 2));
+  }
+
+  @Test
+  void patterns() {
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(newMod()));
+    AmigaMod.Patterns patterns = mod.getPatterns();
+    assertSame(patterns, mod.getPatterns());
+    assertEquals(0x100, patterns.keys.length);
+    AmigaMod.Sequencer sequencer = mod.getSequencer(midiMessage -> {});
+    for (int row = 0; row < 0x40; row++, sequencer.inc()) {
+      AmigaMod.Note[] notes = sequencer.getNotes();
+      int cell = patterns.index(0, row);
+      for (int c = 0; c < 4; c++, cell++) {
+        assertEquals(notes[c].isNoteOn() ? notes[c].getMidiNote() : 0, patterns.getKey(cell));
+        assertEquals(notes[c].getSample(), patterns.getSample(cell));
+        assertEquals(notes[c].getFxCommand(), patterns.effects[cell]);
+        assertEquals(notes[c].getFxData(), patterns.getParam(cell));
+      }
+    }
+    assertEquals(64, patterns.getKey(patterns.index(0, 0) + 1));
+    assertEquals(1, patterns.getSample(patterns.index(0, 8)));
+  }
+
+  @Test
+  void rowText() throws InvalidMidiDataException, IOException {
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(newMod()));
+    List<String> texts = new ArrayList<>();
+    mod.getSequencer(midiMessage -> {
+      if (midiMessage instanceof MetaMessage && ((MetaMessage) midiMessage).getType() == 1) {
+        texts.add(new String(((MetaMessage) midiMessage).getData()));
+      }
+    }).start();
+    assertEquals(0x40, texts.size());
+    assertTrue(texts.get(0).startsWith("\r  00/00 | C-4 01 .00 | E-4 01 .00"), texts.get(0));
+
+    List<String> rows = new ArrayList<>();
+    List<MidiMessage> rowEnds = new ArrayList<>();
+    mod.getSequencer(midiMessage -> {
+      if (midiMessage instanceof MetaMessage && ((MetaMessage) midiMessage).getType() == 1) rowEnds.add(midiMessage);
+    }).setRowText(false).setRowListener(sequencer -> rows.add(sequencer.formatRow())).start();
+    assertEquals(texts, rows);
+    assertEquals(0x40, rowEnds.size());
+    assertEquals(0, ((MetaMessage) rowEnds.get(0x3F)).getData().length);
+    assertSame(rowEnds.get(0), rowEnds.get(0x3F));
+
+    Sequence text = MidiSystem.getSequence(new ByteArrayInputStream(mod.toMidiBytes()));
+    Sequence noText = MidiSystem.getSequence(new ByteArrayInputStream(mod.toMidiBytes(false)));
+    assertEquals(text.getTickLength(), noText.getTickLength());
+    assertEquals(text.getTracks()[0].size() - 0x40, noText.getTracks()[0].size());
+  }
+
+  @Test
+  void smf() throws InvalidMidiDataException, IOException {
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(newMod()));
+    List<MidiMessage> messages = new ArrayList<>();
+    List<Integer> ticks = new ArrayList<>();
+    int[] tick = {0};
+    int[] length = {0};
+    mod.getSequencer(midiMessage -> {
+      messages.add(midiMessage);
+      ticks.add(tick[0]);
+      length[0] += midiMessage.getLength() + 1;
+    }).setRowListener(sequencer -> tick[0]++).start();
+
+    byte[] midi = mod.toMidiBytes();
+    assertTrue(midi.length <= SmfWriter.HEADER_SIZE + length[0] + 4);
+    assertTrue(mod.toMidiBytes(false).length < midi.length / 4);
+    Track track = MidiSystem.getSequence(new ByteArrayInputStream(midi)).getTracks()[0];
+    assertEquals(messages.size() + 1, track.size());
+    for (int i = 0; i < messages.size(); i++) {
+      assertArrayEquals(messages.get(i).getMessage(), track.get(i).getMessage().getMessage());
+      assertEquals((long) ticks.get(i), track.get(i).getTick());
+    }
+    assertEquals(0x40, track.get(messages.size()).getTick());
+
+    SmfWriter writer = new SmfWriter(0);
+    writer.tick(0x4000);
+    writer.accept(new ShortMessage(ShortMessage.NOTE_ON, 1, 60, 0x60));
+    writer.tick(0x7F);
+    writer.accept(new ShortMessage(ShortMessage.NOTE_OFF, 1, 60, 0x60));
+    writer.accept(new ShortMessage(ShortMessage.NOTE_OFF, 1, 64, 0x60));
+    writer.accept(new MetaMessage(1, new byte[0], 0));
+    writer.accept(new ShortMessage(ShortMessage.NOTE_OFF, 1, 60, 0x60));
+    byte[] bytes = writer.toByteArray(4);
+    assertArrayEquals(new byte[] {(byte) 0x81, (byte) 0x80, 0x00, (byte) 0x91, 60, 0x60, 0x7F, (byte) 0x81, 60, 0x60,
+        0x00, 64, 0x60, 0x00, (byte) 0xFF, 0x01, 0x00, 0x00, (byte) 0x81, 60, 0x60, 0x00, (byte) 0xFF, 0x2F, 0x00},
+        Arrays.copyOfRange(bytes, SmfWriter.HEADER_SIZE, bytes.length), "the empty text is kept, it cancels running status");
+  }
+
+  @Test
+  void mapped() throws IOException {
+    Path path = Files.createTempFile("test", ".mod");
+    try {
+      Files.write(path, newMod());
+      AmigaMod mod = new AmigaMod(path);
+      AmigaMod heap = new AmigaMod(new ByteArrayInputStream(newMod()));
+      assertTrue(mod.bytes.isDirect());
+      assertEquals("square", mod.getSampleName(1).trim());
+      assertEquals(heap.getSongName(), mod.getSongName());
+      assertArrayEquals(heap.toMidiBytes(), mod.toMidiBytes());
+      assertArrayEquals(heap.toSoundFont().toByteArray(), mod.toSoundFont().toByteArray());
+    } finally {
+      Files.delete(path);
+    }
+  }
+
+  @Test
+  void signature() {
+    assertEquals(4, AmigaMod.getChannels(AmigaMod.MK));
+    assertEquals(4, AmigaMod.getChannels(0x4D214B21));
+    assertEquals(8, AmigaMod.getChannels(AmigaMod.FLT8));
+    assertEquals(6, AmigaMod.getChannels(0x3643484E)); // 6CHN
+    assertEquals(12, AmigaMod.getChannels(0x31324348)); // 12CH
+    assertEquals(32, AmigaMod.getChannels(0x33324348)); // 32CH
+    assertEquals(3, AmigaMod.getChannels(0x54445A33)); // TDZ3
+    assertEquals(0, AmigaMod.getChannels(0x33334348)); // 33CH
+    assertEquals(0, AmigaMod.getChannels(0));
+  }
+
+  @Test
+  void multiChannel() throws InvalidMidiDataException, IOException {
+    int[][] variants = {{0, 4}, {0x3643484E, 6}, {0x3843484E, 8}, {AmigaMod.FLT8, 8}, {0x31364348, 16}};
+    for (int[] variant : variants) {
+      AmigaMod mod = new AmigaMod(new ByteArrayInputStream(newMod(variant[0], variant[1])));
+      assertEquals(variant[1], mod.channels);
+      assertEquals(variant[0] == 0 ? 0x10 : 0x20, mod.samplesSize);
+      assertEquals("square", mod.getSampleName(1).trim());
+      assertEquals(mod.bytes.limit() - SAMPLE_SIZE, mod.samples[1]);
+      AmigaMod.Patterns patterns = mod.getPatterns();
+      assertEquals(0x40 * variant[1], patterns.keys.length);
+      Set<Integer> midiChannels = new HashSet<>();
+      for (int c = 0; c < mod.channels; c++) {
+        assertEquals(key(c), patterns.getKey(patterns.index(0, 0) + c));
+        midiChannels.add(AmigaMod.getMidiChannel(c));
+      }
+      assertEquals(49, patterns.getKey(patterns.index(0, 8)));
+      assertEquals(0, patterns.getKey(patterns.index(0, 8) + 1));
+
+      Set<Integer> noteOn = new HashSet<>();
+      mod.getSequencer(midiMessage -> {
+        if (midiMessage instanceof ShortMessage && ((ShortMessage) midiMessage).getCommand() == ShortMessage.NOTE_ON) {
+          noteOn.add(((ShortMessage) midiMessage).getChannel());
+        }
+      }).start();
+      assertEquals(midiChannels, noteOn);
+      assertFalse(noteOn.contains(9));
+      Sequence sequence = MidiSystem.getSequence(new ByteArrayInputStream(mod.toMidiBytes()));
+      assertEquals(0x40, sequence.getTickLength());
+    }
+    assertThrows(IllegalStateException.class, () -> new AmigaMod(new ByteArrayInputStream(new byte[0x100])));
   }
 }
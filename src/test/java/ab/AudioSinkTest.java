@@ -0,0 +1,72 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+
+import static ab.TnsSoundTest.BLOCK;
+import static ab.TnsSoundTest.MONO;
+import static org.junit.jupiter.api.Assertions.*;
+
+class AudioSinkTest {
+
+  private static void play(TnsSound sound) {
+    sound.loadAllInstruments(TnsSoundTest.newFont());
+    sound.noteOffOn(0, 1, TnsSound.C4_MIDI, true);
+    for (int block = 1; block < 10; block++) {
+      sound.pull(BLOCK * block);
+    }
+    sound.close();
+  }
+
+  @Test
+  void channel() {
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    play(new TnsSound(MONO, expected));
+    ByteArrayOutputStream actual = new ByteArrayOutputStream();
+    play(new TnsSound(MONO, AudioSink.of(Channels.newChannel(actual))));
+    assertEquals(BLOCK * 45 * 2, actual.size());
+    assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+  }
+
+  @Test
+  void nullSink() {
+    TnsSound sound = new TnsSound(MONO, AudioSink.nullSink());
+    assertEquals(Integer.MAX_VALUE / 2, sound.available());
+    assertThrows(IllegalStateException.class, sound::start);
+    play(sound);
+    assertEquals(9, sound.getMetrics().getBlocks());
+    assertEquals(0, sound.getMetrics().getUnderruns());
+  }
+
+  @Test
+  void lazy() {
+    TnsSound sound = new TnsSound(MONO, 100);
+    AudioSink.Line sink = (AudioSink.Line) sound.sink;
+    assertEquals(4410 * 2, sink.getBufferSize());
+    sound.setMidiOutput(2);
+    sound.loadAllInstruments(TnsSoundTest.newFont());
+    sound.noteOffOn(0, 1, TnsSound.C4_MIDI, true);
+    assertNull(sound.midiReceiver);
+    assertNull(sink.line);
+    sound.close();
+  }
+
+}
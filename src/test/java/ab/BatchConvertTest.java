@@ -0,0 +1,60 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiSystem;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchConvertTest {
+
+  @Test
+  void convert(@TempDir Path directory) throws IOException, InvalidMidiDataException {
+    Path input = directory.resolve("in");
+    Path output = directory.resolve("out");
+    Files.createDirectories(input.resolve("a/b"));
+    Files.write(input.resolve("one.mod"), AmigaModTest.newMod());
+    Files.write(input.resolve("a/two.MOD"), AmigaModTest.newMod());
+    Files.write(input.resolve("a/b/mod.three"), AmigaModTest.newMod());
+    Files.write(input.resolve("a/b/broken.mod"), new byte[0x100]);
+    Files.write(input.resolve("a/readme.txt"), new byte[0x10]);
+
+    BatchConvert batch = new BatchConvert(input, output, 2).run();
+    assertEquals(3, batch.getConverted());
+    assertEquals(0, batch.getSkipped());
+    assertEquals(1, batch.getFailures().size());
+    assertTrue(batch.getFailures().containsKey(input.resolve("a/b/broken.mod")));
+    assertTrue(batch.getFilesPerSecond() > 0);
+    assertTrue(batch.getMegabytesPerSecond() > 0);
+    assertNotNull(MidiSystem.getSequence(output.resolve("a/two.mid").toFile()));
+    assertTrue(Files.size(output.resolve("a/b/mod.three.sf2")) > AmigaModTest.SAMPLE_SIZE * 2);
+    assertTrue(Files.exists(output.resolve("one.mid")));
+
+    batch = new BatchConvert(input, output, 2).run();
+    assertEquals(0, batch.getConverted());
+    assertEquals(3, batch.getSkipped());
+    assertEquals(1, batch.getFailures().size());
+  }
+
+}
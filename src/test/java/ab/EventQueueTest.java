@@ -0,0 +1,61 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventQueueTest {
+
+  @Test
+  void offerPoll() {
+    EventQueue queue = new EventQueue(4);
+    assertTrue(queue.isEmpty());
+    for (int i = 0; i < 4; i++) {
+      assertTrue(queue.offer(i));
+    }
+    assertFalse(queue.offer(4));
+    assertEquals(4, queue.size());
+    assertEquals(0, queue.peek());
+    assertEquals(0, queue.poll());
+    assertTrue(queue.offer(4));
+    for (int i = 1; i <= 4; i++) {
+      assertEquals(i, queue.poll());
+    }
+    assertTrue(queue.isEmpty());
+    assertThrows(IllegalArgumentException.class, () -> new EventQueue(3));
+  }
+
+  @Test
+  void producerConsumer() throws InterruptedException {
+    EventQueue queue = new EventQueue(0x40);
+    int n = 100_000;
+    Thread producer = new Thread(() -> {
+      for (long i = 0; i < n; i++) {
+        queue.put(i);
+      }
+    });
+    producer.start();
+    for (long i = 0; i < n; i++) {
+      while (queue.isEmpty()) Thread.yield();
+      assertEquals(i, queue.poll());
+    }
+    producer.join();
+    assertTrue(queue.isEmpty());
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyControllerTest {
+
+  public static final int RATE = 44_100;
+  public static final int MIN = RATE / 100;
+  public static final int MAX = RATE / 5;
+
+  @Test
+  void adapt() {
+    LatencyController controller = new LatencyController(RATE, MIN, MAX);
+    assertEquals(10_000, controller.getLatencyMicros());
+    assertEquals(MIN, controller.update(0, 0));
+    assertEquals(0, controller.update(MIN, 0), "full");
+    assertEquals(0, controller.update(MIN - 1, 0), "less than a block");
+    assertEquals(MIN / 4, controller.update(MIN - MIN / 4, 0));
+
+    for (int underruns = 1; underruns < 10; underruns++) {
+      controller.update(0, underruns);
+    }
+    assertEquals(MAX, controller.getTargetFrames());
+    assertEquals(MAX / 4, controller.getBlockFrames());
+
+    // a player consuming one block per wake up never lets the queue run low
+    for (int i = 0; i < RATE * 60 / MIN; i++) {
+      int target = controller.getTargetFrames();
+      int queued = target - controller.getBlockFrames();
+      assertEquals(controller.getBlockFrames(), controller.update(queued, 9));
+    }
+    assertEquals(MIN, controller.getTargetFrames());
+
+    controller.update(0, 10);
+    assertEquals(MIN * 2, controller.getTargetFrames());
+    controller.update(0, 0);
+    assertEquals(MIN * 2, controller.getTargetFrames(), "counter reset is not an underrun");
+  }
+
+  @Test
+  void limit() {
+    LatencyController controller = new LatencyController(RATE, MIN, MAX);
+    assertSame(controller, controller.limit(MAX));
+    LatencyController small = controller.limit(MIN / 2);
+    assertEquals(MIN / 2, small.getTargetFrames());
+    small.update(0, 1);
+    assertEquals(MIN / 2, small.getTargetFrames(), "not more than the line buffer");
+    LatencyController half = controller.limit(MAX / 2);
+    assertEquals(MIN, half.getTargetFrames());
+    half.update(0, 1);
+    assertEquals(MIN * 2, half.getTargetFrames());
+  }
+
+  @Test
+  void bounds() {
+    assertThrows(IllegalArgumentException.class, () -> new LatencyController(RATE, MAX, MIN));
+    assertThrows(IllegalArgumentException.class, () -> new LatencyController(RATE, 0, MIN));
+  }
+
+}
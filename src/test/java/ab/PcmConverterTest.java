@@ -0,0 +1,99 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFormat;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PcmConverterTest {
+
+  /**
+   * Left plane then right plane, the last frame clips.
+   */
+  public static final int[] MIX = {0x1234, -0x100, 0x10000, -0x1234, 0x100, -0x10000};
+  public static final int FRAMES = 3;
+
+  private static ByteBuffer convert(AudioFormat audioFormat) {
+    byte[] bytes = new byte[FRAMES * audioFormat.getFrameSize()];
+    PcmConverter.of(audioFormat).convert(MIX, FRAMES, FRAMES, bytes);
+    ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+    PcmConverter.of(audioFormat).convert(MIX, FRAMES, FRAMES, direct);
+    byte[] buffered = new byte[bytes.length];
+    direct.get(buffered);
+    assertArrayEquals(bytes, buffered, "buffer conversion");
+    return ByteBuffer.wrap(bytes).order(audioFormat.isBigEndian() ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+  }
+
+  @Test
+  void signed16() {
+    for (boolean bigEndian : new boolean[]{false, true}) {
+      ByteBuffer buffer = convert(new AudioFormat(44_100, 16, 2, true, bigEndian));
+      short[] expected = {0x1234, -0x1234, -0x100, 0x100, Short.MAX_VALUE, Short.MIN_VALUE};
+      for (short s : expected) assertEquals(s, buffer.getShort());
+    }
+  }
+
+  @Test
+  void signed24() {
+    for (boolean bigEndian : new boolean[]{false, true}) {
+      ByteBuffer buffer = convert(new AudioFormat(44_100, 24, 2, true, bigEndian));
+      int[] expected = {0x123400, -0x123400, -0x10000, 0x10000, 0x7FFF00, -0x800000};
+      for (int v : expected) {
+        int b0 = buffer.get() & 0xFF, b1 = buffer.get() & 0xFF, b2 = buffer.get() & 0xFF;
+        assertEquals(v, (bigEndian ? b0 << 16 | b1 << 8 | b2 : b2 << 16 | b1 << 8 | b0) << 8 >> 8);
+      }
+    }
+  }
+
+  @Test
+  void unsigned8() {
+    ByteBuffer buffer = convert(new AudioFormat(AudioFormat.Encoding.PCM_UNSIGNED, 44_100, 8, 2, 2, 44_100, false));
+    int[] expected = {0x92, 0x6D, 0x7F, 0x81, 0xFF, 0x00};
+    for (int v : expected) assertEquals(v, buffer.get() & 0xFF);
+  }
+
+  @Test
+  void float32() {
+    for (boolean bigEndian : new boolean[]{false, true}) {
+      ByteBuffer buffer = convert(new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, 44_100, 32, 2, 8, 44_100, bigEndian));
+      float[] expected = {0x1234 / 32768f, -0x1234 / 32768f, -0x100 / 32768f, 0x100 / 32768f, 32767 / 32768f, -1};
+      for (float v : expected) assertEquals(v, buffer.getFloat());
+    }
+  }
+
+  @Test
+  void mono() {
+    ByteBuffer buffer = convert(new AudioFormat(44_100, 16, 1, true, false));
+    for (int i = 0; i < FRAMES - 1; i++) assertEquals(MIX[i], buffer.getShort());
+    ByteBuffer quad = convert(new AudioFormat(44_100, 16, 4, true, false));
+    assertEquals(0x1234, quad.getShort(0));
+    assertEquals(-0x1234, quad.getShort(2));
+    assertEquals(0x1234, quad.getShort(4));
+    assertEquals(-0x1234, quad.getShort(6));
+  }
+
+  @Test
+  void unsupported() {
+    assertThrows(IllegalArgumentException.class, () -> PcmConverter.of(new AudioFormat(44_100, 16, 2, false, false)));
+  }
+
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderModTest {
+
+  public static final int ROW_FRAMES = 44_100 * 120 / 1000; // speed 6, tempo 125
+
+  @Test
+  void render() {
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(AmigaModTest.newMod()));
+    RenderMod renderMod = new RenderMod(mod);
+    byte[] pcm = renderMod.toByteArray();
+    assertEquals(ROW_FRAMES * 0x40, renderMod.getFrames());
+    assertEquals(ROW_FRAMES * 0x40 * 4, pcm.length);
+    assertNotEquals(0, pcm[ROW_FRAMES] | pcm[ROW_FRAMES + 1]);
+    assertTrue(renderMod.getRealtimeFactor() > 1);
+
+    ByteBuffer buffer = ByteBuffer.allocate(pcm.length);
+    renderMod.render(buffer);
+    assertArrayEquals(pcm, buffer.array());
+  }
+
+  @Test
+  void renderWav(@TempDir Path directory) throws IOException, UnsupportedAudioFileException {
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(AmigaModTest.newMod()));
+    RenderMod renderMod = new RenderMod(mod);
+    Path path = directory.resolve("render.wav");
+    renderMod.renderWav(path);
+    assertEquals(RenderMod.WAV_HEADER_SIZE + ROW_FRAMES * 0x40 * 4, Files.size(path));
+    assertEquals(ROW_FRAMES * 0x40, AudioSystem.getAudioFileFormat(path.toFile()).getFrameLength());
+    System.out.println(String.format("%.1f x realtime", renderMod.getRealtimeFactor()));
+  }
+
+  @Test
+  void wavFormat(@TempDir Path directory) throws IOException, UnsupportedAudioFileException {
+    AmigaMod mod = new AmigaMod(new ByteArrayInputStream(AmigaModTest.newMod()));
+    Path path = directory.resolve("render.wav");
+    AudioFormat[] formats = {
+        new AudioFormat(AudioFormat.Encoding.PCM_UNSIGNED, 22_050, 8, 1, 1, 22_050, false),
+        new AudioFormat(22_050, 24, 2, true, false),
+        new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, 22_050, 32, 1, 4, 22_050, false),
+    };
+    for (AudioFormat format : formats) {
+      new RenderMod(mod, format).renderWav(path);
+      AudioFormat wav = AudioSystem.getAudioFileFormat(path.toFile()).getFormat();
+      assertEquals(format.getEncoding(), wav.getEncoding());
+      assertEquals(format.getSampleSizeInBits(), wav.getSampleSizeInBits());
+    }
+    AudioFormat[] noWav = {
+        new AudioFormat(22_050, 8, 1, true, false),
+        new AudioFormat(22_050, 16, 2, true, true),
+        new AudioFormat(AudioFormat.Encoding.PCM_FLOAT, 22_050, 32, 1, 4, 22_050, true),
+    };
+    for (AudioFormat format : noWav) {
+      Path noPath = directory.resolve("no.wav");
+      assertThrows(IllegalArgumentException.class, () -> new RenderMod(mod, format).renderWav(noPath));
+      assertFalse(Files.exists(noPath));
+    }
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static ab.TnsSoundTest.BLOCK;
+import static ab.TnsSoundTest.MONO;
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderServerTest {
+
+  public static final int SESSIONS = 8;
+  public static final long TIMEOUT = 10_000_000_000L;
+
+  static void waitFor(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TIMEOUT;
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "timeout");
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  void sessions() throws InvalidMidiDataException, InterruptedException {
+    TnsSound.Font font = TnsSoundTest.newFont();
+    ByteArrayOutputStream[] outputs = new ByteArrayOutputStream[SESSIONS];
+    RenderServer.Session[] sessions = new RenderServer.Session[SESSIONS];
+    long start = System.nanoTime();
+    try (RenderServer server = new RenderServer(2, 20_000_000)) {
+      for (int i = 0; i < SESSIONS; i++) {
+        outputs[i] = new ByteArrayOutputStream();
+        sessions[i] = server.open(MONO, font, outputs[i], BLOCK);
+        sessions[i].send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 1, 0), -1);
+        sessions[i].send(new ShortMessage(ShortMessage.NOTE_ON, 0, TnsSound.C4_MIDI + i, 0x40), -1);
+      }
+      assertEquals(SESSIONS, server.getSessions().size());
+      waitFor(() -> Arrays.stream(sessions).allMatch(session -> session.getFrames() > 0));
+      sessions[0].close();
+      assertTrue(sessions[0].isClosed());
+      assertEquals(SESSIONS - 1, server.getSessions().size());
+      long closedFrames = sessions[0].getFrames() + BLOCK; // the block in flight is completed
+      waitFor(() -> sessions[1].getFrames() > closedFrames + BLOCK);
+      assertTrue(sessions[0].getFrames() <= closedFrames, "not scheduled after close");
+    }
+    long maxFrames = (System.nanoTime() - start + 20_000_000) * 44_100 / 1_000_000_000L + BLOCK;
+    for (int i = 0; i < SESSIONS; i++) {
+      long frames = sessions[i].getFrames();
+      assertTrue(frames > 0);
+      assertTrue(frames <= maxFrames, "paced by the wall clock");
+      assertEquals(frames * 2, outputs[i].size());
+      assertTrue(sessions[i].getCpuNanos() > 0);
+      assertEquals(1, sessions[i].getSound().getActiveVoices());
+      assertTrue(sessions[i].isClosed());
+    }
+  }
+
+  @Test
+  void failure() throws InvalidMidiDataException, InterruptedException {
+    TnsSound.Font font = TnsSoundTest.newFont();
+    OutputStream broken = new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        throw new IOException("broken pipe");
+      }
+    };
+    try (RenderServer server = new RenderServer(1, 20_000_000)) {
+      RenderServer.Session failing = server.open(MONO, font, broken, BLOCK);
+      RenderServer.Session session = server.open(MONO, font, new ByteArrayOutputStream(), BLOCK);
+      session.send(new ShortMessage(ShortMessage.NOTE_ON, 0, TnsSound.C4_MIDI, 0x40), -1);
+      waitFor(() -> failing.getFailure() != null && session.getFrames() > 0);
+      assertInstanceOf(UncheckedIOException.class, failing.getFailure());
+      assertTrue(failing.isClosed());
+      assertEquals(0, failing.getFrames());
+      assertEquals(List.of(session), server.getSessions());
+      assertNull(session.getFailure());
+      assertTrue(session.getFrames() > 0);
+    }
+  }
+
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2022 Aleksei Balan
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package ab;
+
+import org.junit.jupiter.api.Test;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.ShortMessage;
+import javax.sound.sampled.AudioFormat;
+import com.sun.management.ThreadMXBean;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class TnsSoundTest {
+
+  public static final AudioFormat MONO = new AudioFormat(44_100, 16, 1, true, false);
+  public static final int SAMPLE_SIZE = 0x10000;
+  public static final int BLOCK = 0x400;
+  public static final int BLOCKS = 100;
+
+  static TnsSound.Font newFont() {
+    byte[] pcm = new byte[SAMPLE_SIZE];
+    for (int i = 0; i < SAMPLE_SIZE; i++) {
+      pcm[i] = (byte) Math.round(Math.sin(i * Math.PI / 32) * 100);
+    }
+    TnsSound.Font font = new TnsSound.Font(2, ByteBuffer.wrap(pcm), 8363, "test");
+    font.getInstruments()[1].setSampe(0, SAMPLE_SIZE);
+    return font;
+  }
+
+  private static short[] toShorts(byte[] bytes) {
+    short[] result = new short[bytes.length / 2];
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(result);
+    return result;
+  }
+
+  /**
+   * The mixer as it was before the fixed point phase, integer divide and modulo per voice per frame.
+   */
+  private static int[] legacyMix(TnsSound.Font font, int[] keys) {
+    int[] result = new int[BLOCK * BLOCKS];
+    int[] framePosition = new int[keys.length];
+    int[] r = new int[keys.length];
+    int[] sampleRate = new int[keys.length];
+    for (int c = 0; c < keys.length; c++) {
+      sampleRate[c] = (int) (font.c4spd * Math.exp((keys[c] - TnsSound.C4_MIDI) / 12.0 * Math.log(2)));
+    }
+    int v = TnsSound.MIDI_DEFAULT_VELOCITY * 2 / 3;
+    for (int block = 0; block < BLOCKS; block++) {
+      int[] wav = new int[BLOCK];
+      for (int c = 0; c < keys.length; c++) {
+        for (int i = 0; i < wav.length; i++) {
+          r[c] += sampleRate[c];
+          framePosition[c] += r[c] / 44_100;
+          r[c] %= 44_100;
+          if (framePosition[c] >= SAMPLE_SIZE) break;
+          wav[i] += font.samples.get(framePosition[c]) * v;
+        }
+      }
+      System.arraycopy(wav, 0, result, block * BLOCK, BLOCK);
+    }
+    return result;
+  }
+
+  private static short[] mix(TnsSound.Font font, int[] keys, TnsSound.Interpolation interpolation) {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    TnsSound sound = new TnsSound(MONO, stream);
+    sound.setInterpolation(interpolation);
+    sound.loadAllInstruments(font);
+    for (int c = 0; c < keys.length; c++) {
+      sound.noteOffOn(c, 1, keys[c], true);
+    }
+    for (int block = 0; block < BLOCKS; block++) {
+      sound.putWav(sound.getWav(BLOCK));
+    }
+    return toShorts(stream.toByteArray());
+  }
+
+  @Test
+  void interpolation() {
+    TnsSound.Font font = newFont();
+    int[] keys = {48, 55, 60, 67};
+    int[] legacy = legacyMix(font, keys);
+    short[] nearest = mix(font, keys, TnsSound.Interpolation.NEAREST);
+    short[] linear = mix(font, keys, TnsSound.Interpolation.LINEAR);
+    short[] cubic = mix(font, keys, TnsSound.Interpolation.CUBIC);
+    short[] sinc = mix(font, keys, TnsSound.Interpolation.SINC);
+    assertEquals(legacy.length, nearest.length);
+    int same = 0;
+    long linearError = 0;
+    long cubicError = 0;
+    long sincError = 0;
+    long power = 0;
+    for (int i = 0; i < legacy.length; i++) {
+      if (legacy[i] == nearest[i]) same++;
+      linearError += Math.abs(linear[i] - nearest[i]);
+      cubicError += Math.abs(cubic[i] - nearest[i]);
+      sincError += Math.abs(sinc[i] - cubic[i]);
+      power += Math.abs(nearest[i]);
+    }
+    assertTrue(same > legacy.length * 99 / 100, same + " of " + legacy.length);
+    assertTrue(power > 0);
+    assertTrue(linearError < power / 4);
+    assertTrue(cubicError < power / 4);
+    assertTrue(sincError < cubicError / 4, "sinc is close to cubic on a smooth wave");
+  }
+
+  @Test
+  void sinc() {
+    for (int phase = 0; phase < SincKernel.PHASES; phase++) {
+      float sum = 0;
+      for (int tap = 0; tap < SincKernel.TAPS; tap++) sum += SincKernel.TABLE[phase * SincKernel.TAPS + tap];
+      assertEquals(1, sum, 1e-6);
+    }
+    assertEquals(1, SincKernel.TABLE[SincKernel.BEFORE], 1e-6);
+    TnsSound.Font font = newFont();
+    int[] bus = new int[BLOCK];
+    long step = 0x1_3456_789AL;
+    long p = new SincKernel().mix(font.samples, bus, 0, 0, BLOCK, 0, step, 0x100, 0, 0);
+    assertEquals(step * BLOCK, p);
+    for (int i = 8; i < BLOCK; i++) {
+      double ideal = Math.sin(step * (i + 1) * 0x1p-32 * Math.PI / 32) * 100;
+      assertEquals(ideal, bus[i] / 256.0, 1.5, "frame " + i);
+    }
+  }
+
+  /**
+   * Runs where the java 17 classes and the jdk.incubator.vector module are on the test path, the java17 profile.
+   */
+  @Test
+  void vectorSinc() throws ReflectiveOperationException {
+    assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent(), "no jdk.incubator.vector");
+    Method newKernel = Class.forName("ab.VectorSincKernel").getDeclaredMethod("newKernel");
+    newKernel.setAccessible(true);
+    SincKernel vector = (SincKernel) newKernel.invoke(null);
+    assumeTrue(vector != null, "vectors narrower than the taps");
+    TnsSound.Font font = newFont();
+    long step = 0x1_3456_789AL;
+    for (int right : new int[] {0, BLOCK}) {
+      int[] expected = new int[BLOCK * 2];
+      int[] actual = new int[BLOCK * 2];
+      long p = (long) SincKernel.BEFORE << 32;
+      assertEquals(new SincKernel().mix(font.samples, expected, right, 0, BLOCK, p, step, 0x100, 0x80, 2),
+          vector.mix(font.samples, actual, right, 0, BLOCK, p, step, 0x100, 0x80, 2));
+      for (int i = 0; i < expected.length; i++) {
+        assertEquals(expected[i], actual[i], 1, "frame " + i);
+      }
+    }
+  }
+
+  @Test
+  void loop() {
+    TnsSound.Font font = newFont();
+    TnsSound.Instrument[] instruments = font.getInstruments();
+    instruments[0].setSampe(0, 0x100);
+    instruments[1].setSampe(0, 0x100);
+    instruments[1].setLoop(0xC0, 0x40);
+    for (TnsSound.Interpolation interpolation : TnsSound.Interpolation.values()) {
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      TnsSound sound = new TnsSound(MONO, stream);
+      sound.setInterpolation(interpolation);
+      sound.loadAllInstruments(font);
+      sound.noteOffOn(0, 0, 72, true);
+      sound.noteOffOn(1, 1, 72, true);
+      for (int block = 0; block < BLOCKS; block++) {
+        sound.putWav(sound.getWav(BLOCK));
+      }
+      assertEquals(1, sound.getActiveVoices());
+      assertEquals(1, sound.synth.voices[0].channel);
+      long position = sound.synth.voices[0].position >> 32;
+      assertTrue(position >= 0xC0 && position < 0x100, interpolation + " " + position);
+      short[] wav = toShorts(stream.toByteArray());
+      long power = 0;
+      for (int i = wav.length - BLOCK; i < wav.length; i++) {
+        power += Math.abs(wav[i]);
+      }
+      assertTrue(power > 0);
+    }
+  }
+
+  @Test
+  void pan() throws InvalidMidiDataException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    TnsSound sound = new TnsSound(TnsSound.AUDIO_CD, stream);
+    sound.loadAllInstruments(newFont());
+    sound.pan(0, 0);
+    sound.send(new ShortMessage(ShortMessage.CONTROL_CHANGE, 1, TnsSound.CC_PAN, 0x7F), -1);
+    sound.noteOffOn(0, 1, 60, true);
+    sound.putWav(sound.getWav(BLOCK));
+    short[] wav = toShorts(stream.toByteArray());
+    long leftPower = 0;
+    for (int i = 0; i < BLOCK; i++) {
+      leftPower += Math.abs(wav[i * 2]);
+      assertEquals(0, wav[i * 2 + 1]);
+    }
+    assertTrue(leftPower > 0);
+
+    stream.reset();
+    sound.noteOffOn(0, 1, 60, false);
+    sound.noteOffOn(1, 1, 60, true);
+    sound.putWav(sound.getWav(BLOCK));
+    short[] right = toShorts(stream.toByteArray());
+    for (int i = 0; i < BLOCK; i++) {
+      assertEquals(0, right[i * 2]);
+      assertEquals(wav[i * 2], right[i * 2 + 1]);
+    }
+
+    stream.reset();
+    sound.noteOffOn(1, 1, 60, false);
+    sound.pan(2, 0x40);
+    sound.noteOffOn(2, 1, 60, true);
+    sound.putWav(sound.getWav(BLOCK));
+    short[] center = toShorts(stream.toByteArray());
+    for (int i = 0; i < BLOCK; i++) {
+      assertEquals(wav[i * 2], center[i * 2]);
+      assertEquals(wav[i * 2], center[i * 2 + 1]);
+    }
+  }
+
+  @Test
+  void timeStamp() throws InvalidMidiDataException {
+    ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    TnsSound sound = new TnsSound(MONO, stream);
+    sound.loadAllInstruments(newFont());
+    sound.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 1, 0), -1);
+    sound.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 0x60), 500 * 1_000_000L / 44_100 + 1);
+    sound.send(new ShortMessage(ShortMessage.NOTE_OFF, 0, 60, 0), 1500 * 1_000_000L / 44_100 + 1);
+    sound.pull(BLOCK);
+    assertEquals(BLOCK * 1_000_000L / 44_100, sound.getMicrosecondPosition());
+    sound.pull(BLOCK);
+    short[] wav = toShorts(stream.toByteArray());
+    long power = 0;
+    for (int i = 0; i < wav.length; i++) {
+      if (i < 500 || i >= 1500) assertEquals(0, wav[i], "frame " + i);
+      if (i >= 500 && i < 510) power += Math.abs(wav[i]);
+    }
+    assertTrue(power > 0);
+  }
+
+  @Test
+  void voices() {
+    TnsSound sound = new TnsSound(MONO, OutputStream.nullOutputStream());
+    sound.loadAllInstruments(newFont());
+    sound.setMaxVoices(4);
+    for (int key = 60; key < 63; key++) {
+      sound.noteOffOn(0, 1, key, key, true);
+    }
+    sound.pull(BLOCK);
+    assertEquals(3, sound.getActiveVoices());
+    sound.noteOffOn(0, 0, 61, false);
+    sound.pull(BLOCK);
+    assertEquals(2, sound.getActiveVoices());
+    for (int key = 63; key < 66; key++) {
+      sound.noteOffOn(1, 1, key, key, true);
+      sound.pull(BLOCK);
+    }
+    assertEquals(4, sound.getActiveVoices());
+    int[] keys = Arrays.stream(sound.synth.voices).limit(4).mapToInt(clip -> clip.key).sorted().toArray();
+    assertArrayEquals(new int[]{62, 63, 64, 65}, keys);
+
+    sound.setSteal(TnsSound.Steal.QUIETEST);
+    sound.noteOffOn(1, 1, 50, 0x7F, true);
+    sound.pull(BLOCK);
+    keys = Arrays.stream(sound.synth.voices).limit(4).mapToInt(clip -> clip.key).sorted().toArray();
+    assertArrayEquals(new int[]{50, 63, 64, 65}, keys);
+
+    sound.loadAllInstruments(newFont());
+    assertEquals(0, sound.getActiveVoices());
+    assertEquals(4, sound.synth.voices.length, "the cap is kept");
+    assertThrows(IllegalArgumentException.class, () -> sound.setMaxVoices(0));
+    assertEquals(4, sound.synth.voices.length);
+  }
+
+  @Test
+  void allocation() {
+    TnsSound.Font font = newFont();
+    font.getInstruments()[1].setLoop(0, SAMPLE_SIZE);
+    for (AudioFormat audioFormat : new AudioFormat[]{MONO, TnsSound.AUDIO_CD}) {
+      TnsSound sound = new TnsSound(audioFormat, OutputStream.nullOutputStream());
+      sound.loadAllInstruments(font);
+      for (int c = 0; c < 16; c++) {
+        sound.noteOffOn(c, 1, 48 + c, true);
+      }
+      ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+      long threadId = Thread.currentThread().getId();
+      for (int block = 0; block < BLOCKS; block++) {
+        sound.pull(BLOCK);
+      }
+      // the jit may still be settling, steady state is the best of a few measurements
+      long allocated = Long.MAX_VALUE;
+      for (int attempt = 0; attempt < 5; attempt++) {
+        long overhead = threadMXBean.getThreadAllocatedBytes(threadId);
+        overhead = threadMXBean.getThreadAllocatedBytes(threadId) - overhead;
+        long before = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int block = 0; block < BLOCKS; block++) {
+          sound.pull(BLOCK);
+        }
+        long after = threadMXBean.getThreadAllocatedBytes(threadId);
+        allocated = Math.min(allocated, after - before - overhead);
+      }
+      assertEquals(0, allocated, "bytes allocated in " + BLOCKS + " blocks");
+    }
+  }
+
+  @Test
+  void parallel() {
+    TnsSound.Font font = newFont();
+    font.getInstruments()[1].setLoop(0, SAMPLE_SIZE);
+    int voices = 64;
+    short[] expected = null;
+    for (int parallelism = 0; parallelism <= 3; parallelism++) {
+      ForkJoinPool pool = parallelism == 0 ? null : new ForkJoinPool(parallelism);
+      ByteArrayOutputStream stream = new ByteArrayOutputStream();
+      TnsSound sound = new TnsSound(TnsSound.AUDIO_CD, stream);
+      sound.setParallel(pool, 0);
+      sound.loadAllInstruments(font);
+      for (int c = 0; c < voices; c++) {
+        sound.noteOffOn(c & 0x0F, 1, 36 + c, 0x08, true);
+      }
+      for (int block = 0; block < BLOCKS; block++) {
+        sound.pull(BLOCK);
+      }
+      if (pool != null) pool.shutdown();
+      short[] wav = toShorts(stream.toByteArray());
+      if (expected == null) expected = wav; else assertArrayEquals(expected, wav, "parallelism " + parallelism);
+    }
+  }
+
+  @Test
+  void getWav() {
+    TnsSound sound = new TnsSound(MONO, AudioSink.nullSink());
+    assertThrows(IllegalStateException.class, sound::getWav);
+    assertEquals(BLOCK, sound.getWav(BLOCK).length);
+  }
+
+  @Test
+  void queueFull() {
+    TnsSound sound = new TnsSound(MONO, OutputStream.nullOutputStream());
+    sound.loadAllInstruments(newFont());
+    for (int i = 0; i < TnsSound.EVENT_QUEUE_SIZE; i++) {
+      sound.pan(0, 0x40);
+    }
+    assertThrows(IllegalStateException.class, () -> sound.pan(0, 0x40), "before the first render");
+    sound.pull(BLOCK);
+    for (int i = 0; i < TnsSound.EVENT_QUEUE_SIZE; i++) {
+      sound.pan(0, 0x40);
+    }
+    assertThrows(IllegalStateException.class, () -> sound.pan(0, 0x40), "the producer renders");
+    sound.pull(BLOCK);
+    sound.pan(0, 0x40);
+  }
+
+  @Test
+  void renderFailure() throws InvalidMidiDataException, InterruptedException {
+    TnsSound offline = new TnsSound(MONO, AudioSink.nullSink());
+    offline.loadAllInstruments(newFont());
+    offline.send(new ShortMessage(ShortMessage.PROGRAM_CHANGE, 0, 40, 0), -1);
+    offline.noteOffOn(0, 0, TnsSound.C4_MIDI, true);
+    offline.pull(BLOCK);
+    assertEquals(0, offline.getActiveVoices(), "no program 40 in the font");
+    Thread renderer = new Thread(() -> offline.pull(BLOCK));
+    renderer.start();
+    renderer.join();
+    for (int i = 0; i < TnsSound.EVENT_QUEUE_SIZE; i++) {
+      offline.pan(0, 0x40);
+    }
+    assertThrows(IllegalStateException.class, () -> offline.pan(0, 0x40), "the render thread has stopped");
+
+    TnsSound sound = new TnsSound(MONO, new AudioSink() {
+      @Override
+      public void write(byte[] bytes, int offset, int length) {
+        throw new UncheckedIOException(new IOException("device lost"));
+      }
+
+      @Override
+      public int available() {
+        return BLOCK * 2;
+      }
+
+      @Override
+      public int getBufferSize() {
+        return BLOCK * 2;
+      }
+    });
+    sound.loadAllInstruments(newFont());
+    sound.start();
+    long deadline = System.nanoTime() + 10_000_000_000L;
+    while (sound.getFailure() == null && System.nanoTime() < deadline) Thread.sleep(1);
+    assertInstanceOf(UncheckedIOException.class, sound.getFailure());
+    sound.close();
+  }
+
+  @Test
+  void metrics() throws JMException {
+    TnsSound sound = new TnsSound(MONO, OutputStream.nullOutputStream());
+    sound.loadAllInstruments(newFont());
+    sound.registerMBean();
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Set<ObjectName> names = server.queryNames(new ObjectName("ab:type=TnsSound,*"), null);
+    assertEquals(1, names.size());
+    ObjectName name = names.iterator().next();
+    for (int c = 0; c < 3; c++) {
+      sound.noteOffOn(c, 1, TnsSound.C4_MIDI + c, true);
+    }
+    for (int block = 0; block < BLOCKS; block++) {
+      sound.pull(BLOCK);
+    }
+    assertEquals((long) BLOCKS, server.getAttribute(name, "Blocks"));
+    assertEquals(BLOCKS, Arrays.stream((long[]) server.getAttribute(name, "RenderTimeHistogram")).sum());
+    assertEquals(3, server.getAttribute(name, "ActiveVoices"));
+    assertEquals(0L, server.getAttribute(name, "Underruns"));
+    assertTrue((double) server.getAttribute(name, "Headroom") < 1);
+    assertEquals(6L, server.getAttribute(name, "EventsApplied"), "program and note on");
+    server.invoke(name, "reset", null, null);
+    assertEquals(0L, server.getAttribute(name, "Blocks"));
+    sound.close();
+    assertFalse(server.isRegistered(name));
+  }
+}